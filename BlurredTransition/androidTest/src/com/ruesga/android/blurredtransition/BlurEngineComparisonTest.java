@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.blurredtransition;
+
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the output of {@link JavaBlurEngine} with the RenderScript blur intrinsic.
+ * Both must look alike, so the view can fall back to the java blur.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BlurEngineComparisonTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+
+    // Box blurs approximate the gaussian of the intrinsic, so they aren't identical
+    private static final double MIN_PSNR = 30;
+
+    private RenderScriptBlurEngine mRsEngine;
+    private JavaBlurEngine mJavaEngine;
+
+    @Before
+    public void setUp() {
+        mRsEngine = new RenderScriptBlurEngine(InstrumentationRegistry.getTargetContext());
+        mJavaEngine = new JavaBlurEngine();
+    }
+
+    @After
+    public void tearDown() {
+        mRsEngine.destroy();
+        mJavaEngine.destroy();
+    }
+
+    @Test
+    public void testOpaqueBitmaps() {
+        compare(createBitmap(false));
+    }
+
+    @Test
+    public void testTranslucentBitmaps() {
+        compare(createBitmap(true));
+    }
+
+    private void compare(Bitmap in) {
+        Bitmap rs = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        Bitmap java = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        int[] rsPixels = new int[WIDTH * HEIGHT];
+        int[] javaPixels = new int[WIDTH * HEIGHT];
+        try {
+            for (int radius = 1; radius <= mRsEngine.getMaxRadius(); radius++) {
+                mRsEngine.blur(in, rs, radius);
+                mJavaEngine.blur(in, java, radius);
+                rs.getPixels(rsPixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+                java.getPixels(javaPixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+
+                double psnr = psnr(javaPixels, rsPixels);
+                assertTrue("radius " + radius + " psnr " + psnr, psnr >= MIN_PSNR);
+            }
+        } finally {
+            mRsEngine.release(in);
+            in.recycle();
+            rs.recycle();
+            java.recycle();
+        }
+    }
+
+    // Gradients with some hard edges, like a photo. Translucent bitmaps have
+    // transparent holes with a color that must not bleed
+    private static Bitmap createBitmap(boolean translucent) {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int r = (x * 255) / WIDTH;
+                int g = (y * 255) / HEIGHT;
+                int b = ((x / 16 + y / 16) % 2) * 160 + 40;
+                int a = 0xff;
+                if (translucent) {
+                    a = ((x / 20 + y / 20) % 3) == 0 ? 0 : 0x80 + (x % 0x80);
+                }
+                pixels[y * WIDTH + x] = (a << 24) | (r << 16) | (g << 8) | b;
+            }
+        }
+        return Bitmap.createBitmap(pixels, WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+    }
+
+    // The PSNR of the premultiplied channels, so the color of transparent pixels
+    // doesn't count
+    private static double psnr(int[] pixels, int[] reference) {
+        double error = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            for (int shift = 0; shift <= 24; shift += 8) {
+                int d = premultiplied(pixels[i], shift) - premultiplied(reference[i], shift);
+                error += d * d;
+            }
+        }
+        double mse = error / (pixels.length * 4.0);
+        return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10((255 * 255) / mse);
+    }
+
+    private static int premultiplied(int pixel, int shift) {
+        int c = (pixel >> shift) & 0xff;
+        return shift == 24 ? c : (c * (pixel >>> 24) + 127) / 255;
+    }
+}
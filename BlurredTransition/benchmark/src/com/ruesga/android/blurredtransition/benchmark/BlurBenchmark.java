@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.blurredtransition.benchmark;
+
+import com.ruesga.android.blurredtransition.GaussianBoxBlur;
+import com.ruesga.android.blurredtransition.JavaPixelBlur;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A plain JVM benchmark of the pure java blurs: the pixel path of JavaBlurEngine, and
+ * GaussianBoxBlur with other number of passes. Every blur is run over the sample images,
+ * at every radius and downsample factor, and reports the time and the allocated bytes
+ * per frame, and the PSNR against a reference gaussian blur. The results are written
+ * as JSON.
+ * <p/>
+ * Usage: BlurBenchmark [--images dir] [--radii 1-25] [--factors 1,2,4,8]
+ * [--warmup-time ms] [--min-time ms] [--out file]
+ */
+public class BlurBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int MIN_ITERATIONS = 3;
+
+    /**
+     * A blur of ARGB pixels, row by row.
+     */
+    public interface Engine {
+        String getName();
+
+        /**
+         * Blurs a copy of the passed pixels, and returns the blurred pixels. The returned
+         * array can be longer than the image, and it's reused by the next blur.
+         */
+        int[] blur(int[] in, int width, int height, boolean alpha, int radius);
+    }
+
+    // The pixel path of JavaBlurEngine, the engine used by the view. The copy of the
+    // input stands for Bitmap#getPixels
+    private static class JavaEngine implements Engine {
+        private final JavaPixelBlur mBlur = new JavaPixelBlur();
+
+        @Override
+        public String getName() {
+            return "java-engine";
+        }
+
+        @Override
+        public int[] blur(int[] in, int width, int height, boolean alpha, int radius) {
+            int[] pixels = mBlur.getPixels(width, height);
+            System.arraycopy(in, 0, pixels, 0, width * height);
+            mBlur.blur(width, height, alpha, radius);
+            return pixels;
+        }
+    }
+
+    // A single-threaded GaussianBoxBlur, to compare the number of passes
+    private static class BoxBlurEngine implements Engine {
+        private final String mName;
+        private final GaussianBoxBlur mBlur;
+        private int[] mPixels;
+        private int[] mScratch;
+
+        BoxBlurEngine(String name, GaussianBoxBlur blur) {
+            mName = name;
+            mBlur = blur;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public int[] blur(int[] in, int width, int height, boolean alpha, int radius) {
+            int size = width * height;
+            if (mPixels == null || mPixels.length < size) {
+                mPixels = new int[size];
+                mScratch = new int[size];
+            }
+            System.arraycopy(in, 0, mPixels, 0, size);
+            if (alpha) {
+                GaussianBoxBlur.premultiply(mPixels, size);
+            }
+            mBlur.blur(mPixels, mScratch, width, height, radius);
+            if (alpha) {
+                GaussianBoxBlur.unpremultiply(mPixels, size);
+            }
+            return mPixels;
+        }
+    }
+
+    private static class Image {
+        private final String mName;
+        private final int mWidth;
+        private final int mHeight;
+        private final boolean mAlpha;
+        private final int[] mPixels;
+
+        Image(String name, int width, int height, boolean alpha, int[] pixels) {
+            mName = name;
+            mWidth = width;
+            mHeight = height;
+            mAlpha = alpha;
+            mPixels = pixels;
+        }
+    }
+
+    private File mImagesDir = new File("res/drawable-nodpi");
+    private int mMinRadius = 1;
+    private int mMaxRadius = 25;
+    private int[] mFactors = {1, 2, 4, 8};
+    private long mWarmupTime = 100;
+    private long mMinTime = 200;
+    private File mOut;
+
+    private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws IOException {
+        BlurBenchmark benchmark = new BlurBenchmark();
+        benchmark.parseArgs(args);
+        benchmark.run();
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value of " + arg);
+            }
+            String value = args[++i];
+            if (arg.equals("--images")) {
+                mImagesDir = new File(value);
+            } else if (arg.equals("--radii")) {
+                int dash = value.indexOf('-');
+                mMinRadius = Integer.parseInt(dash == -1 ? value : value.substring(0, dash));
+                mMaxRadius = Integer.parseInt(dash == -1 ? value : value.substring(dash + 1));
+            } else if (arg.equals("--factors")) {
+                String[] factors = value.split(",");
+                mFactors = new int[factors.length];
+                for (int j = 0; j < factors.length; j++) {
+                    mFactors[j] = Integer.parseInt(factors[j].trim());
+                }
+            } else if (arg.equals("--warmup-time")) {
+                mWarmupTime = Long.parseLong(value);
+            } else if (arg.equals("--min-time")) {
+                mMinTime = Long.parseLong(value);
+            } else if (arg.equals("--out")) {
+                mOut = new File(value);
+            } else {
+                throw new IllegalArgumentException("Unknown argument " + arg);
+            }
+        }
+    }
+
+    private static List<Engine> createEngines() {
+        List<Engine> engines = new ArrayList<>();
+        engines.add(new JavaEngine());
+        engines.add(new BoxBlurEngine("box3", new GaussianBoxBlur()));
+        engines.add(new BoxBlurEngine("box2", new GaussianBoxBlur(null, 1, 2)));
+        engines.add(new BoxBlurEngine("box4", new GaussianBoxBlur(null, 1, 4)));
+        return engines;
+    }
+
+    private void run() throws IOException {
+        final int parallelism = Runtime.getRuntime().availableProcessors();
+        List<Engine> engines = createEngines();
+        List<Image> images = loadImages();
+
+        Writer writer = mOut != null
+                ? new OutputStreamWriter(new FileOutputStream(mOut), "UTF-8")
+                : new OutputStreamWriter(System.out, "UTF-8");
+        PrintWriter out = new PrintWriter(writer);
+        out.println("{");
+        out.println("  \"jvm\": " + quote(System.getProperty("java.vm.name") + " "
+                + System.getProperty("java.version")) + ",");
+        out.println("  \"cpus\": " + parallelism + ",");
+        out.println("  \"results\": [");
+        boolean first = true;
+        try {
+            for (Image image : images) {
+                for (int factor : mFactors) {
+                    Image in = downsample(image, factor);
+                    int[] reference = new int[in.mPixels.length];
+                    int[] scratch = new int[in.mPixels.length];
+                    for (int radius = mMinRadius; radius <= mMaxRadius; radius++) {
+                        System.arraycopy(in.mPixels, 0, reference, 0, reference.length);
+                        gaussianBlur(reference, scratch, in.mWidth, in.mHeight,
+                                GaussianBoxBlur.radiusToSigma(radius));
+                        for (Engine engine : engines) {
+                            String result = measure(engine, image, in, factor, radius,
+                                    reference);
+                            out.print(first ? "" : ",\n");
+                            out.print("    " + result);
+                            out.flush();
+                            first = false;
+                        }
+                    }
+                }
+            }
+        } finally {
+            out.println();
+            out.println("  ]");
+            out.println("}");
+            out.close();
+        }
+    }
+
+    private List<Image> loadImages() throws IOException {
+        File[] files = mImagesDir.listFiles();
+        if (files == null) {
+            throw new IOException("Can't list " + mImagesDir);
+        }
+        Arrays.sort(files);
+        List<Image> images = new ArrayList<>();
+        for (File file : files) {
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                continue;
+            }
+            int width = image.getWidth();
+            int height = image.getHeight();
+            int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+            String name = file.getName();
+            int dot = name.lastIndexOf('.');
+            images.add(new Image(dot == -1 ? name : name.substring(0, dot),
+                    width, height, image.getColorModel().hasAlpha(), pixels));
+        }
+        return images;
+    }
+
+    private String measure(Engine engine, Image image, Image in, int factor, int radius,
+            int[] reference) {
+        // Warm up the engine (and let it allocate its buffers)
+        long warmup = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS || warmup < mWarmupTime * 1000000L; i++) {
+            long start = System.nanoTime();
+            engine.blur(in.mPixels, in.mWidth, in.mHeight, in.mAlpha, radius);
+            warmup += System.nanoTime() - start;
+        }
+
+        // The measured loop doesn't allocate by itself, so the allocations are read
+        // once around the loop, minus the allocations of reading them. The warm up
+        // started the threads of the engine, so the threads don't change meanwhile
+        final long overhead = measureAllocationOverhead();
+        long time = 0;
+        long minTime = Long.MAX_VALUE;
+        int iterations = 0;
+        int[] pixels = null;
+        long bytes = getAllocatedBytes();
+        while (iterations < MIN_ITERATIONS || time < mMinTime * 1000000L) {
+            long start = System.nanoTime();
+            pixels = engine.blur(in.mPixels, in.mWidth, in.mHeight, in.mAlpha, radius);
+            long elapsed = System.nanoTime() - start;
+            time += elapsed;
+            minTime = Math.min(minTime, elapsed);
+            iterations++;
+        }
+        long allocated = Math.max(0, getAllocatedBytes() - bytes - overhead);
+
+        double psnr = psnr(pixels, reference, reference.length);
+        return String.format(Locale.US, "{\"image\": %s, \"width\": %d, \"height\": %d, "
+                + "\"factor\": %d, \"engine\": %s, \"radius\": %d, \"iterations\": %d, "
+                + "\"msPerFrame\": %.3f, \"minMs\": %.3f, \"bytesPerFrame\": %d, "
+                + "\"psnr\": %s}",
+                quote(image.mName), in.mWidth, in.mHeight, factor, quote(engine.getName()),
+                radius, iterations, time / (iterations * 1000000.0), minTime / 1000000.0,
+                allocated / iterations,
+                Double.isInfinite(psnr) ? "null" : String.format(Locale.US, "%.2f", psnr));
+    }
+
+    // The bytes allocated by all the threads. Allocations of the parallel blurs
+    // happen in the executor threads
+    private long getAllocatedBytes() {
+        if (!(mThreads instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        long bytes = 0;
+        for (long allocated : ((com.sun.management.ThreadMXBean) mThreads)
+                .getThreadAllocatedBytes(mThreads.getAllThreadIds())) {
+            if (allocated > 0) {
+                bytes += allocated;
+            }
+        }
+        return bytes;
+    }
+
+    // The bytes allocated by reading the allocated bytes (the arrays of the thread ids
+    // and of their allocations), measured as the allocations of an empty loop
+    private long measureAllocationOverhead() {
+        long overhead = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            long bytes = getAllocatedBytes();
+            overhead = Math.min(overhead, getAllocatedBytes() - bytes);
+        }
+        return overhead;
+    }
+
+    // Box downsample, close to the filtered scale of Bitmap.createScaledBitmap
+    private static Image downsample(Image image, int factor) {
+        if (factor <= 1) {
+            return image;
+        }
+        final int width = Math.max(1, image.mWidth / factor);
+        final int height = Math.max(1, image.mHeight / factor);
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int a = 0, r = 0, g = 0, b = 0, count = 0;
+                for (int sy = y * factor; sy < Math.min((y + 1) * factor, image.mHeight); sy++) {
+                    for (int sx = x * factor; sx < Math.min((x + 1) * factor, image.mWidth);
+                            sx++) {
+                        int p = image.mPixels[sy * image.mWidth + sx];
+                        a += p >>> 24;
+                        r += (p >> 16) & 0xff;
+                        g += (p >> 8) & 0xff;
+                        b += p & 0xff;
+                        count++;
+                    }
+                }
+                pixels[y * width + x] = ((a / count) << 24) | ((r / count) << 16)
+                        | ((g / count) << 8) | (b / count);
+            }
+        }
+        return new Image(image.mName, width, height, image.mAlpha, pixels);
+    }
+
+    // A separable gaussian blur with a kernel of 3 sigmas and clamped edges
+    private static void gaussianBlur(int[] pixels, int[] scratch, int width, int height,
+            float sigma) {
+        final int radius = (int) Math.ceil(sigma * 3);
+        float[] kernel = new float[2 * radius + 1];
+        float sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            kernel[i + radius] = (float) Math.exp(-(i * i) / (2.0 * sigma * sigma));
+            sum += kernel[i + radius];
+        }
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] /= sum;
+        }
+        convolve(pixels, scratch, width, height, kernel, 1, width);
+        convolve(scratch, pixels, height, width, kernel, width, 1);
+    }
+
+    // Convolves the lines of src into dst. Pixels of a line are step apart and
+    // lines are stride apart
+    private static void convolve(int[] src, int[] dst, int length, int lines,
+            float[] kernel, int step, int stride) {
+        final int radius = kernel.length / 2;
+        for (int line = 0; line < lines; line++) {
+            final int offset = line * stride;
+            for (int i = 0; i < length; i++) {
+                float a = 0, r = 0, g = 0, b = 0;
+                for (int k = -radius; k <= radius; k++) {
+                    int p = src[offset + Math.min(Math.max(i + k, 0), length - 1) * step];
+                    float w = kernel[k + radius];
+                    a += (p >>> 24) * w;
+                    r += ((p >> 16) & 0xff) * w;
+                    g += ((p >> 8) & 0xff) * w;
+                    b += (p & 0xff) * w;
+                }
+                dst[offset + i * step] = (clamp(a) << 24) | (clamp(r) << 16)
+                        | (clamp(g) << 8) | clamp(b);
+            }
+        }
+    }
+
+    private static int clamp(float value) {
+        return Math.min(255, Math.max(0, Math.round(value)));
+    }
+
+    // The PSNR of the color channels
+    private static double psnr(int[] pixels, int[] reference, int count) {
+        double error = 0;
+        for (int i = 0; i < count; i++) {
+            int p = pixels[i];
+            int q = reference[i];
+            for (int shift = 0; shift <= 16; shift += 8) {
+                int d = ((p >> shift) & 0xff) - ((q >> shift) & 0xff);
+                error += d * d;
+            }
+        }
+        double mse = error / (count * 3.0);
+        return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10((255 * 255) / mse);
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
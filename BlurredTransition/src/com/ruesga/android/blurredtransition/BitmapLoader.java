@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.blurredtransition;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView.ScaleType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decodes bitmap resources in background, keeping them in a size-bounded LRU memory
+ * cache. Bitmaps evicted from the cache that are no longer in use are reused to decode
+ * new ones (through {@link BitmapFactory.Options#inBitmap}).
+ * <p/>
+ * A bitmap delivered to a callback is in use until it's released with
+ * {@link #onBitmapReleased(Bitmap)} (once per delivery), so the loader can be set
+ * directly as the
+ * {@link BlurredTransitionImageView.OnBitmapReleasedListener} of the view that shows it.
+ */
+public class BitmapLoader implements BlurredTransitionImageView.OnBitmapReleasedListener {
+
+    private static final String TAG = "BitmapLoader";
+
+    public interface Callback {
+        void onBitmapLoaded(int resId, Bitmap bitmap);
+    }
+
+    private static final int MAX_REUSABLE_BITMAPS = 4;
+
+    private final Resources mResources;
+    private final LruCache<String, Bitmap> mCache;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // All these fields are guarded by the loader lock. The cache is only looked up and
+    // filled holding it too, so a bitmap can't be evicted (and reused) between the
+    // lookup and the count of its users. The bitmaps in the cache are mirrored in
+    // a set, so releasing a bitmap doesn't need to walk the cache
+    private final Map<Bitmap, Integer> mInUse = new IdentityHashMap<>();
+    private final Set<Bitmap> mCached =
+            Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+    private final List<Bitmap> mReusable = new ArrayList<>();
+    private final Map<String, List<Callback>> mPending = new HashMap<>();
+
+    /**
+     * @param res the resources to decode the bitmaps from
+     * @param maxSize the max size (in bytes) of the memory cache
+     */
+    public BitmapLoader(Resources res, int maxSize) {
+        mResources = res;
+        mCache = new LruCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key,
+                    Bitmap oldValue, Bitmap newValue) {
+                synchronized (BitmapLoader.this) {
+                    mCached.remove(oldValue);
+                    if (!mInUse.containsKey(oldValue)) {
+                        addReusable(oldValue);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Loads a bitmap resource with the size it's displayed with in a view of the passed
+     * size and scale type (see {@link #decodeBitmap}). The callback is called in the main
+     * thread, immediately if the bitmap is in the cache.
+     */
+    public void load(int resId, int reqWidth, int reqHeight, ScaleType scaleType,
+            Callback cb) {
+        final String key = toKey(resId, reqWidth, reqHeight, scaleType);
+        Bitmap bitmap;
+        synchronized (this) {
+            bitmap = mCache.get(key);
+            if (bitmap != null) {
+                acquire(bitmap, 1);
+            }
+        }
+        if (bitmap != null) {
+            cb.onBitmapLoaded(resId, bitmap);
+            return;
+        }
+        enqueue(key, resId, reqWidth, reqHeight, scaleType, cb);
+    }
+
+    /**
+     * Decodes a bitmap resource in background so it's in the cache when it's needed.
+     */
+    public void prefetch(int resId, int reqWidth, int reqHeight, ScaleType scaleType) {
+        final String key = toKey(resId, reqWidth, reqHeight, scaleType);
+        if (mCache.get(key) == null) {
+            enqueue(key, resId, reqWidth, reqHeight, scaleType, null);
+        }
+    }
+
+    @Override
+    public synchronized void onBitmapReleased(Bitmap bitmap) {
+        Integer users = mInUse.get(bitmap);
+        if (users == null) {
+            return;
+        }
+        if (users > 1) {
+            mInUse.put(bitmap, users - 1);
+        } else {
+            mInUse.remove(bitmap);
+            if (!mCached.contains(bitmap)) {
+                // It was evicted while in use
+                addReusable(bitmap);
+            }
+        }
+    }
+
+    // Must be called holding the loader lock
+    private void acquire(Bitmap bitmap, int users) {
+        Integer current = mInUse.get(bitmap);
+        mInUse.put(bitmap, current == null ? users : current + users);
+    }
+
+    /**
+     * Evicts all the bitmaps and stops the decoding thread.
+     */
+    public void destroy() {
+        mExecutor.shutdownNow();
+        mCache.evictAll();
+        synchronized (this) {
+            for (Bitmap bitmap : mReusable) {
+                bitmap.recycle();
+            }
+            mReusable.clear();
+        }
+    }
+
+    private void enqueue(final String key, final int resId, final int reqWidth,
+            final int reqHeight, final ScaleType scaleType, Callback cb) {
+        synchronized (this) {
+            List<Callback> callbacks = mPending.get(key);
+            if (callbacks != null) {
+                // Already decoding
+                if (cb != null) {
+                    callbacks.add(cb);
+                }
+                return;
+            }
+            callbacks = new ArrayList<>();
+            if (cb != null) {
+                callbacks.add(cb);
+            }
+            mPending.put(key, callbacks);
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = decode(mResources, resId, reqWidth, reqHeight,
+                        scaleType, BitmapLoader.this);
+                if (bitmap != null) {
+                    synchronized (BitmapLoader.this) {
+                        // Keep it out of the reuse pool until it's delivered
+                        acquire(bitmap, 1);
+                        mCached.add(bitmap);
+                        mCache.put(key, bitmap);
+                    }
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<Callback> callbacks;
+                        synchronized (BitmapLoader.this) {
+                            callbacks = mPending.remove(key);
+                            if (bitmap != null) {
+                                // One user per callback
+                                if (callbacks.size() > 1) {
+                                    acquire(bitmap, callbacks.size() - 1);
+                                } else if (callbacks.isEmpty()) {
+                                    onBitmapReleased(bitmap);
+                                }
+                            }
+                        }
+                        for (Callback callback : callbacks) {
+                            callback.onBitmapLoaded(resId, bitmap);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Decodes a bitmap resource with the size it's displayed with in a view of the passed
+     * size and scale type, so the bitmap has the minimum number of pixels. Only the
+     * visible region of the resource is decoded, sampled and then scaled to the exact
+     * size. Bitmaps are never upscaled. With an unknown size or a {@link ScaleType#MATRIX}
+     * scale type the whole resource is decoded.
+     */
+    public static Bitmap decodeBitmap(Resources res, int resId,
+            int reqWidth, int reqHeight, ScaleType scaleType) {
+        return decode(res, resId, reqWidth, reqHeight, scaleType, null);
+    }
+
+    // Reuses and recycles the bitmaps through the loader, if any
+    private static Bitmap decode(Resources res, int resId, int reqWidth, int reqHeight,
+            ScaleType scaleType, BitmapLoader loader) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        options.inScaled = false;
+        BitmapFactory.decodeResource(res, resId, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        final Rect region = new Rect();
+        final Point size = computeSize(options.outWidth, options.outHeight,
+                reqWidth, reqHeight, scaleType, region);
+        final boolean whole = region.width() == options.outWidth
+                && region.height() == options.outHeight;
+        options.inSampleSize = 1;
+        while (region.width() / (options.inSampleSize * 2) >= size.x
+                && region.height() / (options.inSampleSize * 2) >= size.y) {
+            options.inSampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        // BitmapRegionDecoder supports inBitmap since JellyBean
+        if (loader != null && (whole
+                || Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)) {
+            options.inBitmap = loader.takeReusable(region.width() / options.inSampleSize,
+                    region.height() / options.inSampleSize, options.inSampleSize);
+        }
+
+        Bitmap bitmap;
+        try {
+            bitmap = decodeRegion(res, resId, whole ? null : region, options);
+        } catch (IllegalArgumentException ex) {
+            if (options.inBitmap == null) {
+                throw ex;
+            }
+            // The bitmap can't be reused
+            options.inBitmap.recycle();
+            options.inBitmap = null;
+            bitmap = decodeRegion(res, resId, whole ? null : region, options);
+        }
+        if (bitmap == null
+                || (bitmap.getWidth() == size.x && bitmap.getHeight() == size.y)) {
+            return bitmap;
+        }
+
+        // Scale the sampled bitmap to the exact size
+        Bitmap scaled = Bitmap.createBitmap(size.x, size.y, bitmap.getConfig());
+        Canvas canvas = new Canvas(scaled);
+        canvas.drawBitmap(bitmap, null, new Rect(0, 0, size.x, size.y),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        if (loader != null) {
+            loader.addReusable(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+
+    private static Bitmap decodeRegion(Resources res, int resId, Rect region,
+            BitmapFactory.Options options) {
+        if (region == null) {
+            return BitmapFactory.decodeResource(res, resId, options);
+        }
+        InputStream is = res.openRawResource(resId);
+        try {
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(is, false);
+            try {
+                return decoder.decodeRegion(region, options);
+            } finally {
+                decoder.recycle();
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Can't decode the resource " + resId, ex);
+            return null;
+        } finally {
+            try {
+                is.close();
+            } catch (IOException ex) {
+                // Ignore
+            }
+        }
+    }
+
+    // Returns the size of the bitmap displayed in the requested size with the passed
+    // scale type, and sets the visible region of the bitmap
+    private static Point computeSize(int width, int height, int reqWidth, int reqHeight,
+            ScaleType scaleType, Rect region) {
+        region.set(0, 0, width, height);
+        if (reqWidth <= 0 || reqHeight <= 0 || scaleType == null
+                || scaleType == ScaleType.MATRIX) {
+            return new Point(width, height);
+        }
+
+        final float sx = reqWidth / (float) width;
+        final float sy = reqHeight / (float) height;
+        final float scale;
+        switch (scaleType) {
+            case FIT_XY:
+                return new Point(Math.min(width, reqWidth), Math.min(height, reqHeight));
+
+            case CENTER:
+                // Not scaled, just cropped
+                crop(region, Math.min(width, reqWidth), Math.min(height, reqHeight));
+                return new Point(region.width(), region.height());
+
+            case CENTER_CROP:
+                scale = Math.max(sx, sy);
+                crop(region, Math.min(width, Math.round(reqWidth / scale)),
+                        Math.min(height, Math.round(reqHeight / scale)));
+                return scale(region.width(), region.height(), scale);
+
+            default:
+                // FIT_START, FIT_CENTER, FIT_END and CENTER_INSIDE
+                return scale(width, height, Math.min(sx, sy));
+        }
+    }
+
+    // Crops the region to the passed size around its center
+    private static void crop(Rect region, int width, int height) {
+        int left = region.left + (region.width() - width) / 2;
+        int top = region.top + (region.height() - height) / 2;
+        region.set(left, top, left + width, top + height);
+    }
+
+    private static Point scale(int width, int height, float scale) {
+        if (scale >= 1f) {
+            return new Point(width, height);
+        }
+        return new Point(Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)));
+    }
+
+    private synchronized void addReusable(Bitmap bitmap) {
+        if (bitmap.isMutable() && !bitmap.isRecycled()) {
+            mReusable.add(bitmap);
+            if (mReusable.size() > MAX_REUSABLE_BITMAPS) {
+                mReusable.remove(0).recycle();
+            }
+        }
+    }
+
+    private synchronized Bitmap takeReusable(int width, int height, int inSampleSize) {
+        Iterator<Bitmap> it = mReusable.iterator();
+        while (it.hasNext()) {
+            Bitmap candidate = it.next();
+            if (canReuse(candidate, width, height, inSampleSize)) {
+                it.remove();
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    // The width and height of the decoded bitmap
+    private static boolean canReuse(Bitmap candidate, int width, int height,
+            int inSampleSize) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Any bitmap big enough can be reused
+            return width * height * 4 <= candidate.getAllocationByteCount();
+        }
+        // Before KitKat only bitmaps of the same size and not sampled can be reused
+        return candidate.getWidth() == width
+                && candidate.getHeight() == height
+                && inSampleSize == 1;
+    }
+
+    private static String toKey(int resId, int reqWidth, int reqHeight,
+            ScaleType scaleType) {
+        return resId + ":" + reqWidth + "x" + reqHeight + ":" + scaleType;
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.blurredtransition;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A size-bounded LRU disk cache of blurred frames, keyed by the content of the blurred
+ * bitmap and everything else the frame depends on (see
+ * {@link #getKey(String, String, int, int, int, String, Bitmap.Config)}).
+ * <p/>
+ * Frames are stored as raw pixels at the downsampled resolution, so they are read back
+ * memory-mapped straight into the destination bitmap without decoding them. They aren't
+ * compressed, so a hit never pays a decode, at the cost of more disk space per frame.
+ * They are written in a background thread: {@link #put(String, Bitmap)} just copies the
+ * pixels, and drops the frame if other frame is still being written. The entries are loaded on the first access, so
+ * the cache can be created in the ui thread.
+ * The LRU order survives restarts through the last modified time of the files, which
+ * is updated (in background) at most once per minute for every entry.
+ * <p/>
+ * The cache is thread-safe, but it's meant to be used from the blur worker thread.
+ */
+public class BlurDiskCache {
+
+    private static final String TAG = "BlurDiskCache";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final long TOUCH_INTERVAL = 60 * 1000;
+
+    private static ExecutorService sExecutor;
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "BlurDiskCache");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    private static class Entry {
+        private final long mSize;
+        // The last modified time of the file, as far as the cache knows
+        private long mModified;
+
+        private Entry(long size, long modified) {
+            mSize = size;
+            mModified = modified;
+        }
+    }
+
+    private final File mDir;
+    private final long mMaxSize;
+
+    // The entries, in access order
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private boolean mLoaded;
+    private long mSize;
+
+    // The pixels of the frame being written. The writer owns them while writing
+    private ByteBuffer mWriteBuffer;
+    private String mWriteKey;
+    private boolean mWriting;
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    /**
+     * @param dir the directory of the cache. It should be only used by this cache
+     * @param maxSize the max size (in bytes) of the cache
+     */
+    public BlurDiskCache(File dir, long maxSize) {
+        mDir = dir;
+        mMaxSize = maxSize;
+    }
+
+    // Must be called with the lock held
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Can't create the cache directory " + mDir);
+        }
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(TMP_SUFFIX)) {
+                // An interrupted write
+                file.delete();
+                continue;
+            }
+            mEntries.put(file.getName(), new Entry(file.length(), file.lastModified()));
+            mSize += file.length();
+        }
+        trimToSize();
+    }
+
+    /**
+     * Returns a hash of the pixels of the bitmap, to be used as the content part
+     * of the cache keys.
+     */
+    public static String hash(Bitmap bitmap) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        digest.update(ByteBuffer.allocate(8).putInt(width).putInt(height).array());
+        int[] row = new int[width];
+        ByteBuffer bytes = ByteBuffer.allocate(width * 4);
+        IntBuffer ints = bytes.asIntBuffer();
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            ints.clear();
+            ints.put(row);
+            digest.update(bytes.array());
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the key of the frame of a bitmap.
+     *
+     * @param hash the hash of the bitmap, as returned by {@link #hash(Bitmap)}
+     * @param effect the name of the effect of the frame
+     * @param level the blur radius (or the level of the effect)
+     * @param maxLevel the max level of the effect in the transition
+     * @param downsampleFactor the downsample factor of the bitmap
+     * @param engine the name of the blur engine
+     * @param config the config of the frame
+     */
+    public static String getKey(String hash, String effect, int level, int maxLevel,
+            int downsampleFactor, String engine, Bitmap.Config config) {
+        return hash + "_" + effect + "_" + level + "_" + maxLevel + "_" + downsampleFactor
+                + "_" + engine + "_" + config;
+    }
+
+    /**
+     * Reads a frame into the passed bitmap.
+     *
+     * @return whether the frame was in the cache (with the size of the bitmap)
+     */
+    public synchronized boolean get(String key, Bitmap bitmap) {
+        ensureLoaded();
+        Entry entry = mEntries.get(key);
+        if (entry == null || entry.mSize != bitmap.getRowBytes() * bitmap.getHeight()) {
+            return false;
+        }
+
+        final File file = new File(mDir, key);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, entry.mSize);
+            bitmap.copyPixelsFromBuffer(buffer);
+        } catch (IOException ex) {
+            Log.w(TAG, "Can't read the cache entry " + key, ex);
+            remove(key);
+            return false;
+        } finally {
+            close(raf);
+        }
+
+        final long now = System.currentTimeMillis();
+        if (now - entry.mModified > TOUCH_INTERVAL) {
+            entry.mModified = now;
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    file.setLastModified(now);
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Stores the frame of the passed key. The pixels are copied, and then written in
+     * background. The frame is dropped if other frame is still being written.
+     */
+    public void put(String key, Bitmap bitmap) {
+        final int size = bitmap.getRowBytes() * bitmap.getHeight();
+        synchronized (this) {
+            ensureLoaded();
+            if (mWriting || size > mMaxSize || mEntries.containsKey(key)) {
+                return;
+            }
+            mWriting = true;
+        }
+
+        // The writer is idle, so the buffer can be replaced
+        if (mWriteBuffer == null || mWriteBuffer.capacity() < size) {
+            mWriteBuffer = ByteBuffer.allocate(size);
+        }
+        mWriteBuffer.clear();
+        bitmap.copyPixelsToBuffer(mWriteBuffer);
+        mWriteBuffer.flip();
+        mWriteKey = key;
+        getExecutor().execute(mWrite);
+    }
+
+    // Called from the writer thread
+    private void write() {
+        final String key = mWriteKey;
+        final long size = mWriteBuffer.remaining();
+        // Write to a temporary file, so an interrupted write never looks like an entry
+        File tmp = new File(mDir, key + TMP_SUFFIX);
+        RandomAccessFile raf = null;
+        boolean written = false;
+        try {
+            raf = new RandomAccessFile(tmp, "rw");
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            while (mWriteBuffer.hasRemaining()) {
+                channel.write(mWriteBuffer);
+            }
+            written = true;
+        } catch (IOException ex) {
+            Log.w(TAG, "Can't write the cache entry " + key, ex);
+        } finally {
+            written &= close(raf);
+        }
+
+        synchronized (this) {
+            mWriting = false;
+            File file = new File(mDir, key);
+            remove(key);
+            if (!written || !tmp.renameTo(file)) {
+                tmp.delete();
+                return;
+            }
+            mEntries.put(key, new Entry(size, file.lastModified()));
+            mSize += size;
+            trimToSize();
+        }
+    }
+
+    /**
+     * Removes all the entries of the cache.
+     */
+    public synchronized void clear() {
+        ensureLoaded();
+        for (String key : mEntries.keySet()) {
+            new File(mDir, key).delete();
+        }
+        mEntries.clear();
+        mSize = 0;
+    }
+
+    private void remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mSize -= entry.mSize;
+            new File(mDir, key).delete();
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            Map.Entry<String, Entry> entry = it.next();
+            mSize -= entry.getValue().mSize;
+            new File(mDir, entry.getKey()).delete();
+            it.remove();
+        }
+    }
+
+    private static boolean close(RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.blurredtransition;
+
+import android.graphics.Bitmap;
+
+/**
+ * The default effect, that blurs the bitmaps with the blur engine of the view.
+ */
+public class BlurEffect implements TransitionEffect {
+
+    private final boolean mCrossFade;
+
+    public BlurEffect() {
+        this(false);
+    }
+
+    /**
+     * @param crossFade whether to cross-fade the blurred bitmaps instead of switching them
+     */
+    public BlurEffect(boolean crossFade) {
+        mCrossFade = crossFade;
+    }
+
+    @Override
+    public String getName() {
+        // The same frames with and without cross-fade
+        return "blur";
+    }
+
+    @Override
+    public boolean isCrossFade() {
+        return mCrossFade;
+    }
+
+    @Override
+    public void render(BlurEngine engine, Bitmap in, Bitmap out, int level, int maxLevel) {
+        engine.blur(in, out, level);
+    }
+}
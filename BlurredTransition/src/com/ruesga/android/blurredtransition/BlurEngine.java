@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.blurredtransition;
+
+import android.graphics.Bitmap;
+
+/**
+ * An engine that blurs bitmaps. All the methods of an engine are called from the same
+ * thread, so implementations don't need to be thread-safe.
+ */
+public interface BlurEngine {
+    /**
+     * Returns the max radius supported by the engine.
+     */
+    int getMaxRadius();
+
+    /**
+     * Returns how far (in pixels) the blur of the passed radius reaches. Output pixels
+     * farther than this from an edge of the input are not affected by the edge.
+     */
+    int getReach(int radius);
+
+    /**
+     * Blurs the input bitmap into the output bitmap. Both bitmaps have the same size
+     * and config. The engine can keep resources associated to the input bitmap until
+     * {@link #release(Bitmap)} is called, but it must honor changes to its pixels.
+     */
+    void blur(Bitmap in, Bitmap out, int radius);
+
+    /**
+     * Releases the resources associated to the input bitmap.
+     */
+    void release(Bitmap in);
+
+    /**
+     * Returns the bytes allocated by the engine since it was created (pixel buffers,
+     * RenderScript allocations, intermediate bitmaps). Engines that wrap other engine
+     * only count their own allocations.
+     */
+    long getAllocatedBytes();
+
+    /**
+     * Releases all the resources of the engine. The engine can't be used anymore.
+     */
+    void destroy();
+}
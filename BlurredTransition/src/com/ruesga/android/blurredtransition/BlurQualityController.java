@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.blurredtransition;
+
+/**
+ * Adapts the blur quality to the measured time of the blurred frames. When the frames
+ * are over the budget, the quality is lowered by raising the downsample factor (and
+ * then quantizing the radius more coarsely). When there is enough headroom, the quality
+ * is restored in the reverse order.
+ * <p/>
+ * Frames are reported from the worker thread while the quality is read from the ui
+ * thread, so all the methods are synchronized.
+ */
+class BlurQualityController {
+
+    private static final int MAX_DOWNSAMPLE_FACTOR = 8;
+    private static final int MAX_RADIUS_STEP = 4;
+
+    // Frames to wait after a change before taking another decision
+    private static final int COOLDOWN_FRAMES = 3;
+    private static final float SMOOTHING = 0.3f;
+
+    private final int mMinDownsampleFactor;
+    private final long mFrameBudget;
+
+    private int mDownsampleFactor;
+    private int mRadiusStep;
+    private float mAverageFrameTime;
+    private int mFrames;
+
+    /**
+     * @param downsampleFactor the downsample factor of the best quality
+     * @param frameBudget the max time of a frame, in nanoseconds
+     */
+    BlurQualityController(int downsampleFactor, long frameBudget) {
+        mMinDownsampleFactor = downsampleFactor;
+        mFrameBudget = frameBudget;
+        mDownsampleFactor = downsampleFactor;
+        mRadiusStep = 1;
+    }
+
+    synchronized int getDownsampleFactor() {
+        return mDownsampleFactor;
+    }
+
+    synchronized int getRadiusStep() {
+        return mRadiusStep;
+    }
+
+    synchronized float getAverageFrameTime() {
+        return mAverageFrameTime;
+    }
+
+    /**
+     * Reports the time of a rendered frame.
+     *
+     * @return whether the quality changed
+     */
+    synchronized boolean onFrameRendered(long time) {
+        mAverageFrameTime = mFrames == 0
+                ? time : (SMOOTHING * time) + ((1 - SMOOTHING) * mAverageFrameTime);
+        mFrames++;
+        if (mFrames < COOLDOWN_FRAMES) {
+            return false;
+        }
+
+        boolean changed = false;
+        if (mAverageFrameTime > mFrameBudget) {
+            changed = degrade();
+        } else if (mRadiusStep > 1 && mAverageFrameTime < mFrameBudget * 0.5f) {
+            // Coarser radius only skip frames, so a finer one is cheap to restore
+            mRadiusStep /= 2;
+            changed = true;
+        } else if (mDownsampleFactor > mMinDownsampleFactor
+                && mAverageFrameTime < mFrameBudget * 0.2f) {
+            // Halving the factor quadruples the blurred pixels
+            mDownsampleFactor /= 2;
+            changed = true;
+        }
+
+        if (changed) {
+            mFrames = 0;
+        }
+        return changed;
+    }
+
+    private boolean degrade() {
+        if (mDownsampleFactor < MAX_DOWNSAMPLE_FACTOR) {
+            mDownsampleFactor *= 2;
+            return true;
+        }
+        if (mRadiusStep < MAX_RADIUS_STEP) {
+            mRadiusStep *= 2;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.android.blurredtransition;
+
+/**
+ * The tiles of a tiled blur. Tiles have a constant size (tiles at the edges are moved
+ * inside the image) and overlap by the reach of the blur. Every tile fills the area of
+ * the output farther than the reach from the tile edges (or at the edges of the image),
+ * so the blurred tiles give the same pixels as the blur of the whole image.
+ * <p/>
+ * The tiles are iterated with {@link #reset(int, int, int, int)} and {@link #next()},
+ * without allocations. This class doesn't depend on the Android framework.
+ */
+final class BlurTiles {
+
+    private int mWidth;
+    private int mHeight;
+    private int mTileWidth;
+    private int mTileHeight;
+    private int mStepX;
+    private int mStepY;
+    private int mReach;
+
+    // The next tile to return
+    private int mX;
+    private int mY;
+
+    // The current tile, and the area of the output it fills, in image coordinates
+    private int mTileLeft;
+    private int mTileTop;
+    private int mLeft;
+    private int mTop;
+    private int mRight;
+    private int mBottom;
+
+    /**
+     * Starts iterating the tiles of an image. Returns false if the image fits in a tile,
+     * or the tiles are too small for the reach; then the image must be blurred at once.
+     */
+    boolean reset(int width, int height, int tileSize, int reach) {
+        mWidth = width;
+        mHeight = height;
+        mTileWidth = Math.min(tileSize, width);
+        mTileHeight = Math.min(tileSize, height);
+        mStepX = mTileWidth == width ? width : mTileWidth - 2 * reach;
+        mStepY = mTileHeight == height ? height : mTileHeight - 2 * reach;
+        mReach = reach;
+        mX = 0;
+        mY = 0;
+        return (mTileWidth != width || mTileHeight != height) && mStepX > 0 && mStepY > 0;
+    }
+
+    /**
+     * Moves to the next tile. Returns false once all the tiles were returned.
+     */
+    boolean next() {
+        if (mY >= mHeight) {
+            return false;
+        }
+        mLeft = mX;
+        mTop = mY;
+        mRight = Math.min(mX + mStepX, mWidth);
+        mBottom = Math.min(mY + mStepY, mHeight);
+        mTileLeft = Math.min(Math.max(0, mX - mReach), mWidth - mTileWidth);
+        mTileTop = Math.min(Math.max(0, mY - mReach), mHeight - mTileHeight);
+
+        mX += mStepX;
+        if (mX >= mWidth) {
+            mX = 0;
+            mY += mStepY;
+        }
+        return true;
+    }
+
+    int getTileWidth() {
+        return mTileWidth;
+    }
+
+    int getTileHeight() {
+        return mTileHeight;
+    }
+
+    int getTileLeft() {
+        return mTileLeft;
+    }
+
+    int getTileTop() {
+        return mTileTop;
+    }
+
+    int getLeft() {
+        return mLeft;
+    }
+
+    int getTop() {
+        return mTop;
+    }
+
+    int getRight() {
+        return mRight;
+    }
+
+    int getBottom() {
+        return mBottom;
+    }
+}
@@ -17,21 +17,25 @@
 package com.ruesga.android.blurredtransition;
 
 import android.app.Activity;
-import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
 
+import java.io.File;
+
 public class BlurredTransitionActivity extends Activity {
 
     private Button mButton;
     private BlurredTransitionImageView mImageView;
+    private BitmapLoader mBitmapLoader;
 
     private int mCurrentImage = 0;
 
+    // Frames are stored as raw pixels at the downsampled size, so they take some room
+    private static final long BLUR_CACHE_SIZE = 64 * 1024 * 1024;
+
     private static final int[] DRAWABLES_RES_IDS = {
             R.drawable.horseshoe_bend,
             R.drawable.lone_pine_sunset,
@@ -44,8 +48,16 @@ public class BlurredTransitionActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
 
+        // Use 1/8th of the available memory for the bitmap cache
+        int cacheSize = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+        mBitmapLoader = new BitmapLoader(getResources(), cacheSize);
+
         mButton = (Button) findViewById(R.id.button);
         mImageView = (BlurredTransitionImageView) findViewById(R.id.image);
+        mImageView.setOnBitmapReleasedListener(mBitmapLoader);
+        // The cache loads its entries on the first use, in the worker thread
+        mImageView.setBlurCache(new BlurDiskCache(
+                new File(getCacheDir(), "blur"), BLUR_CACHE_SIZE));
         mButton.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -53,31 +65,32 @@ public class BlurredTransitionActivity extends Activity {
                 if (mCurrentImage >= DRAWABLES_RES_IDS.length) {
                     mCurrentImage = 0;
                 }
-                mImageView.setImageBitmap(decodeSampledBitmapFromResource(getResources(),
-                        DRAWABLES_RES_IDS[mCurrentImage], mImageView.getWidth(),
-                        mImageView.getHeight()));
+                final int image = mCurrentImage;
+                mBitmapLoader.load(DRAWABLES_RES_IDS[image], mImageView.getWidth(),
+                        mImageView.getHeight(), mImageView.getScaleType(),
+                        new BitmapLoader.Callback() {
+                    @Override
+                    public void onBitmapLoaded(int resId, Bitmap bitmap) {
+                        // Skip the result if the user clicked again meanwhile
+                        if (image == mCurrentImage && bitmap != null) {
+                            mImageView.setImageBitmap(bitmap);
+                        } else if (bitmap != null) {
+                            mBitmapLoader.onBitmapReleased(bitmap);
+                        }
+                    }
+                });
+
+                // Decode the next image while the transition runs
+                int next = (image + 1) % DRAWABLES_RES_IDS.length;
+                mBitmapLoader.prefetch(DRAWABLES_RES_IDS[next], mImageView.getWidth(),
+                        mImageView.getHeight(), mImageView.getScaleType());
             }
         });
     }
 
-    private static Bitmap decodeSampledBitmapFromResource(Resources res, int resId,
-            int reqWidth, int reqHeight) {
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeResource(res, resId, options);
-        final int height = options.outHeight;
-        final int width = options.outWidth;
-        int inSampleSize = 1;
-        if (height > reqHeight || width > reqWidth) {
-            final int halfHeight = height / 2;
-            final int halfWidth = width / 2;
-            while ((halfHeight / inSampleSize) > reqHeight &&
-                    (halfWidth / inSampleSize) > reqWidth) {
-                inSampleSize *= 2;
-            }
-        }
-        options.inSampleSize = inSampleSize;
-        options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeResource(res, resId, options);
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mBitmapLoader.destroy();
     }
 }
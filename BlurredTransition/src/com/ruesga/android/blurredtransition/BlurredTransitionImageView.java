@@ -1,17 +1,23 @@
 package com.ruesga.android.blurredtransition;
 
 import android.content.Context;
+import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.support.v8.renderscript.Allocation;
-import android.support.v8.renderscript.Element;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.v8.renderscript.RSRuntimeException;
-import android.support.v8.renderscript.RenderScript;
-import android.support.v8.renderscript.RenderScript.ContextType;
-import android.support.v8.renderscript.ScriptIntrinsicBlur;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.animation.Animation;
@@ -20,30 +26,291 @@ import android.view.animation.Transformation;
 import android.view.animation.Animation.AnimationListener;
 import android.widget.ImageView;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public class BlurredTransitionImageView extends ImageView {
     
     private static final String TAG = "BlurredTransitionImageView";
 
     private static final int DEFAULT_BLUR_MAX_RADIUS = 25;
     private static final int DEFAULT_TRANSITION_DURATION = 800;
+    private static final int DEFAULT_DOWNSAMPLE_FACTOR = 1;
+    private static final int DEFAULT_KEYFRAMES = 0;
+    private static final int DEFAULT_KEYFRAMES_DEADLINE = 150;
+    private static final int DEFAULT_FRAME_BUDGET = 16;
+    private static final int DEFAULT_TILE_SIZE = 1024;
+    private static final boolean DEFAULT_LOW_PRECISION = false;
+
+    // The values of the effect attribute
+    private static final int EFFECT_BLUR = 0;
+    private static final int EFFECT_BLUR_CROSS_FADE = 1;
+    private static final int EFFECT_PIXELATE = 2;
+    private static final int EFFECT_DESATURATE = 3;
+
+    // The max radius allowed at the (downsampled) blur resolution
+    private static final int MAX_BLUR_RADIUS = 25;
+
+    // The buffers used to blur a bitmap. They are created in the worker thread on the
+    // first blurred frame and reused by the rest of frames of the animation. The worker
+    // renders into the back buffer while the front one is on screen
+    private static class BlurBuffers {
+        private final Bitmap mBitmap;
+        private int mFactor;
+        private Bitmap mIn;
+        private String mHash;
+        private Bitmap mFront;
+        private Bitmap mBack;
+        private BitmapDrawable mFrontDrawable;
+        private BitmapDrawable mBackDrawable;
+        private BitmapDrawable mDrawable;
+
+        private BlurBuffers(Bitmap bitmap) {
+            mBitmap = bitmap;
+        }
+
+        private void swap() {
+            Bitmap bitmap = mFront;
+            mFront = mBack;
+            mBack = bitmap;
+            BitmapDrawable drawable = mFrontDrawable;
+            mFrontDrawable = mBackDrawable;
+            mBackDrawable = drawable;
+        }
+    }
+
+    // A drawable that draws a downsampled bitmap filtered and upscaled to the size of
+    // the original one, so the image matrix of the view doesn't change
+    private static class ScaledBitmapDrawable extends BitmapDrawable {
+        private final int mWidth;
+        private final int mHeight;
+
+        public ScaledBitmapDrawable(Resources res, Bitmap bitmap, int width, int height) {
+            super(res, bitmap);
+            mWidth = width;
+            mHeight = height;
+            setFilterBitmap(true);
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return mHeight;
+        }
+    }
+
+    // A drawable that cross-fades two bitmaps (of any size) drawn filtered into its bounds.
+    // A frame can be drawn into its own bounds instead (ie. the frames of the other bitmap
+    // of a cross-faded transition), so it isn't stretched to the aspect of the drawable
+    private static class CrossFadeDrawable extends Drawable {
+        private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        private final int mWidth;
+        private final int mHeight;
+        private Bitmap mFrom;
+        private Bitmap mTo;
+        private int mMix;
+        // The bounds of the frames, relative to the intrinsic size. Null for the bounds
+        // of the drawable
+        private RectF mFromBounds;
+        private RectF mToBounds;
+        private final RectF mDrawBounds = new RectF();
+
+        public CrossFadeDrawable(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+        }
+
+        public void setFrameBounds(RectF from, RectF to) {
+            mFromBounds = from;
+            mToBounds = to;
+        }
+
+        public void setFrames(Bitmap from, Bitmap to, float mix) {
+            mFrom = from;
+            mTo = to;
+            mMix = (int) (mix * 255);
+            invalidateSelf();
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            if (mFrom != null) {
+                mPaint.setAlpha(255);
+                drawFrame(canvas, mFrom, mFromBounds);
+            }
+            if (mTo != null && mMix > 0) {
+                mPaint.setAlpha(mMix);
+                drawFrame(canvas, mTo, mToBounds);
+            }
+        }
+
+        private void drawFrame(Canvas canvas, Bitmap frame, RectF frameBounds) {
+            Rect bounds = getBounds();
+            if (frameBounds == null) {
+                canvas.drawBitmap(frame, null, bounds, mPaint);
+                return;
+            }
+            float sx = bounds.width() / (float) mWidth;
+            float sy = bounds.height() / (float) mHeight;
+            mDrawBounds.set(bounds.left + frameBounds.left * sx,
+                    bounds.top + frameBounds.top * sy,
+                    bounds.left + frameBounds.right * sx,
+                    bounds.top + frameBounds.bottom * sy);
+            canvas.drawBitmap(frame, null, mDrawBounds, mPaint);
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return mWidth;
+        }
 
+        @Override
+        public int getIntrinsicHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public void setAlpha(int alpha) {
+        }
+
+        @Override
+        public void setColorFilter(ColorFilter cf) {
+            mPaint.setColorFilter(cf);
+        }
+
+        @Override
+        public int getOpacity() {
+            return PixelFormat.TRANSLUCENT;
+        }
+    }
+
+    // Renders the frames of a transition effect. All the effects share the buffers, the
+    // worker thread, the adaptive quality and the stats of the transition
     private class BlurredTransitionAnimation extends Animation {
-        private final RenderScript mRs;
-        private final ScriptIntrinsicBlur mScript;
-        private int mLastBlurRadius;
+        private final BlurEngine mEngine;
+        private final TransitionEffect mEffect;
         private int mMaxRadius;
+        private int mDownsampleFactor;
+
+        // Bitmaps bigger than a tile are blurred in tiles. Only used from the worker
+        private int mTileSize;
+        private TiledBlurEngine mTiledEngine;
+
+        // Frames are looked up here before rendering them
+        private BlurDiskCache mCache;
+
+        // Blur opaque bitmaps as RGB_565
+        private boolean mLowPrecision;
 
         private final Bitmap mSrc;
         private final Bitmap mDst;
+        private final BlurBuffers mSrcBuffers;
+        private final BlurBuffers mDstBuffers;
+        private boolean mShowingDst;
+        private boolean mFinished;
+
+        // The last frame shown, the last one requested, and whether the worker is busy.
+        // While busy, the requested frame is just replaced, so the frames that the worker
+        // can't keep up with are skipped
+        // When the effect cross-fades, both bitmaps are rendered for every frame and
+        // these fields refer to the source buffers
+        private BlurBuffers mLastBuffers;
+        private int mLastBlurRadius;
+        private int mLastFactor;
+        private BlurBuffers mRequestedBuffers;
+        private int mRequestedRadius;
+        private int mRequestedFactor;
+        private boolean mRendering;
 
-        public BlurredTransitionAnimation(RenderScript rs, Bitmap src, Bitmap dst) {
+        // The frame in the worker. Set in the ui thread before posting the render, and
+        // not changed until the frame is delivered. The runnables are reused by all the
+        // frames, so the frame loop doesn't allocate
+        private BlurBuffers mRenderBuffers;
+        private int mRenderRadius;
+        private int mRenderFactor;
+        private final Runnable mRenderFrame = new Runnable() {
+            @Override
+            public void run() {
+                if (mCancelled) {
+                    return;
+                }
+                long time = renderFrame(mRenderBuffers, mRenderRadius, mRenderFactor);
+                if (mEffect.isCrossFade()) {
+                    time += renderFrame(mDstBuffers, mRenderRadius, mRenderFactor);
+                }
+                // A cross-faded frame is a single frame, of both bitmaps
+                recordBlur(time);
+                onFrameRendered(time);
+                post(mDeliverFrame);
+            }
+        };
+        private final Runnable mDeliverFrame = new Runnable() {
+            @Override
+            public void run() {
+                deliverFrame(mRenderBuffers, mRenderRadius, mRenderFactor);
+            }
+        };
+
+        // Adapts the downsample factor and the radius step to the time of the frames.
+        // The buffers replaced by a quality change could still be on screen, so they
+        // are kept (by the worker) until the animation finishes
+        private BlurQualityController mQuality;
+        private final List<Bitmap> mRetiredBitmaps = new ArrayList<Bitmap>();
+
+        // Keyframes are rendered in the worker thread, one per message, so the frames
+        // requested meanwhile (once the deadline passed) aren't delayed by the whole job.
+        // Index 0 is the unblurred bitmap
+        private int mKeyframes;
+        private Bitmap[] mSrcKeyframes;
+        private Bitmap[] mDstKeyframes;
+        // The keyframes being rendered. Only accessed from the worker
+        private KeyframeJob mKeyframeJob;
+
+        // Draw the keyframes and the cross-faded frames with the size of each bitmap
+        private final CrossFadeDrawable mSrcCrossFadeDrawable;
+        private final CrossFadeDrawable mDstCrossFadeDrawable;
+        private float mMix;
+        // The cross-faded frames on screen. The worker can replace the buffers meanwhile
+        private Bitmap mSrcFrame;
+        private Bitmap mDstFrame;
+
+        // Stats. The blur times and the allocations are only accessed from the worker
+        private OnTransitionStatsListener mStatsListener;
+        private long[] mBlurTimes;
+        private int mRenderedFrames;
+        private int mRenderedKeyframes;
+        private long mKeyframeTime;
+        private long mAllocatedBytes;
+        // The bytes allocated by the engine before the transition used it
+        private long mEngineBytes = -1;
+        private int mSkippedFrames;
+        private long mStartTime;
+
+        private volatile boolean mCancelled;
+
+        public BlurredTransitionAnimation(BlurEngine engine, TransitionEffect effect,
+                Bitmap src, Bitmap dst) {
             super();
-            mRs = rs;
-            mScript = ScriptIntrinsicBlur.create(mRs, Element.U8_4(mRs));
-            mLastBlurRadius = 1;
+            mEngine = engine;
+            mEffect = effect;
             mSrc = src;
             mDst = dst;
+            mSrcBuffers = new BlurBuffers(src);
+            mDstBuffers = new BlurBuffers(dst);
+            mSrcCrossFadeDrawable = new CrossFadeDrawable(src.getWidth(), src.getHeight());
+            mDstCrossFadeDrawable = new CrossFadeDrawable(dst.getWidth(), dst.getHeight());
+            if (effect.isCrossFade()) {
+                // Draw the frames of the other bitmap where the view would show it
+                mSrcCrossFadeDrawable.setFrameBounds(null, mapBitmap(dst, src));
+                mDstCrossFadeDrawable.setFrameBounds(mapBitmap(src, dst), null);
+            }
             mMaxRadius = DEFAULT_TRANSITION_DURATION;
+            mDownsampleFactor = DEFAULT_DOWNSAMPLE_FACTOR;
 
             setInterpolator(new LinearInterpolator());
             setFillAfter(true);
@@ -55,38 +322,592 @@ public class BlurredTransitionImageView extends ImageView {
             mMaxRadius = maxRadius;
         }
 
+        public void setDownsampleFactor(int downsampleFactor) {
+            mDownsampleFactor = downsampleFactor;
+        }
+
+        public void setQualityController(BlurQualityController quality) {
+            mQuality = quality;
+        }
+
+        public void setTileSize(int tileSize) {
+            mTileSize = tileSize;
+        }
+
+        private boolean isTiled(Bitmap in) {
+            return mTileSize > 0 && (in.getWidth() > mTileSize || in.getHeight() > mTileSize);
+        }
+
+        // Must be called from the worker thread
+        private BlurEngine getEngine(Bitmap in) {
+            if (mEngineBytes < 0) {
+                mEngineBytes = mEngine.getAllocatedBytes();
+            }
+            if (!isTiled(in)) {
+                return mEngine;
+            }
+            if (mTiledEngine == null) {
+                mTiledEngine = new TiledBlurEngine(mEngine, mTileSize);
+            }
+            return mTiledEngine;
+        }
+
+        public void setBlurCache(BlurDiskCache cache) {
+            mCache = cache;
+        }
+
+        public void setLowPrecision(boolean lowPrecision) {
+            mLowPrecision = lowPrecision;
+        }
+
+        // The config of the blurred frames of a bitmap
+        private Bitmap.Config getBlurConfig(Bitmap bitmap) {
+            if (mLowPrecision && !bitmap.hasAlpha()) {
+                return Bitmap.Config.RGB_565;
+            }
+            return bitmap.getConfig();
+        }
+
+        // Renders a frame, unless it's in the cache. Returns the key to cache the frame
+        // with (once it's no longer timed), or null. Must be called from the worker thread
+        private String render(Bitmap in, String hash, Bitmap out, int radius, int factor) {
+            final int maxRadius = toBlurRadius(mMaxRadius, factor, 1);
+            String key = null;
+            if (mCache != null) {
+                key = BlurDiskCache.getKey(hash, mEffect.getName(), radius, maxRadius,
+                        factor, mEngine.getClass().getSimpleName(), out.getConfig());
+                if (mCache.get(key, out)) {
+                    return null;
+                }
+            }
+            mEffect.render(getEngine(in), in, out, radius, maxRadius);
+            return key;
+        }
+
+        public void setStatsListener(OnTransitionStatsListener listener) {
+            mStatsListener = listener;
+            mBlurTimes = listener != null ? new long[32] : null;
+        }
+
+        /**
+         * Renders the keyframes of both bitmaps in the worker thread, and runs the
+         * callback in the ui thread once they are ready.
+         */
+        public void prepareKeyframes(int keyframes, Runnable onReady) {
+            final KeyframeJob job = new KeyframeJob(keyframes, onReady);
+            getWorkerHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    mKeyframeJob = job;
+                    job.run();
+                }
+            });
+        }
+
+        // Renders a keyframe and posts itself again to the worker for the next one, so
+        // the worker can render the requested frames in between. Runs in the worker
+        private class KeyframeJob implements Runnable {
+            private final int mCount;
+            private final Runnable mOnReady;
+            private final Bitmap[] mSrcFrames;
+            private final Bitmap[] mDstFrames;
+
+            // The keyframes being rendered (source first), their input and the next one
+            private Bitmap[] mFrames;
+            private Bitmap mIn;
+            private String mHash;
+            private int mNext = 1;
+
+            private KeyframeJob(int count, Runnable onReady) {
+                mCount = count;
+                mOnReady = onReady;
+                mSrcFrames = new Bitmap[count + 1];
+                mSrcFrames[0] = mSrc;
+                mDstFrames = new Bitmap[count + 1];
+                mDstFrames[0] = mDst;
+                mFrames = mSrcFrames;
+            }
+
+            @Override
+            public void run() {
+                if (mKeyframeJob != this) {
+                    // Aborted
+                    return;
+                }
+                if (mCancelled) {
+                    abort();
+                    return;
+                }
+
+                Bitmap bitmap = mFrames[0];
+                Bitmap.Config config = getBlurConfig(bitmap);
+                if (mIn == null) {
+                    mIn = downsample(bitmap, mDownsampleFactor, config);
+                    if (mIn != bitmap) {
+                        recordAllocation(mIn);
+                    }
+                    mHash = mCache != null ? BlurDiskCache.hash(mIn) : null;
+                }
+                Bitmap keyframe = Bitmap.createBitmap(mIn.getWidth(), mIn.getHeight(), config);
+                mFrames[mNext] = keyframe;
+                recordAllocation(keyframe);
+                long start = System.nanoTime();
+                String key = render(mIn, mHash, keyframe,
+                        toBlurRadius((mMaxRadius * mNext) / (float) mCount,
+                                mDownsampleFactor, 1), mDownsampleFactor);
+                // Keyframes aren't frames of the transition, so they are accounted apart
+                mKeyframeTime += System.nanoTime() - start;
+                mRenderedKeyframes++;
+                if (key != null) {
+                    mCache.put(key, keyframe);
+                }
+
+                if (mNext < mCount) {
+                    mNext++;
+                    getWorkerHandler().post(this);
+                    return;
+                }
+                releaseInput();
+                if (mFrames == mSrcFrames) {
+                    mFrames = mDstFrames;
+                    mNext = 1;
+                    getWorkerHandler().post(this);
+                    return;
+                }
+
+                mKeyframeJob = null;
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mCancelled) {
+                            recycleKeyframes(mSrcFrames);
+                            recycleKeyframes(mDstFrames);
+                            return;
+                        }
+                        mKeyframes = mCount;
+                        mSrcKeyframes = mSrcFrames;
+                        mDstKeyframes = mDstFrames;
+                        mLastBuffers = null;
+                        mRequestedBuffers = null;
+                        mOnReady.run();
+                    }
+                });
+            }
+
+            // Drops the keyframes rendered so far
+            private void abort() {
+                releaseInput();
+                recycleKeyframes(mSrcFrames);
+                recycleKeyframes(mDstFrames);
+                mKeyframeJob = null;
+            }
+
+            private void releaseInput() {
+                if (mIn != null) {
+                    getEngine(mIn).release(mIn);
+                    if (mIn != mFrames[0]) {
+                        mIn.recycle();
+                    }
+                    mIn = null;
+                    mHash = null;
+                }
+            }
+        }
+
+        private Bitmap downsample(Bitmap bitmap, int factor, Bitmap.Config config) {
+            int width = Math.max(1, bitmap.getWidth() / factor);
+            int height = Math.max(1, bitmap.getHeight() / factor);
+            if (config == bitmap.getConfig()) {
+                if (factor <= 1) {
+                    return bitmap;
+                }
+                return Bitmap.createScaledBitmap(bitmap, width, height, true);
+            }
+
+            // Scale and convert at once
+            Bitmap in = Bitmap.createBitmap(width, height, config);
+            Canvas canvas = new Canvas(in);
+            canvas.drawBitmap(bitmap, null, new Rect(0, 0, width, height),
+                    new Paint(Paint.FILTER_BITMAP_FLAG));
+            return in;
+        }
+
+        // Blur at the downsampled resolution, where the same visual radius
+        // is divided by the downsample factor. A step greater than 1 quantizes the
+        // radius, so more consecutive frames share it and aren't blurred again
+        private int toBlurRadius(float radius, int factor, int step) {
+            int r = Math.round(radius / factor);
+            if (step > 1) {
+                r = Math.round(r / (float) step) * step;
+            }
+            return Math.min(mEngine.getMaxRadius(), Math.max(1, r));
+        }
+
+        // Must be called from the worker thread
+        private void recordBlur(long time) {
+            if (mBlurTimes != null) {
+                if (mRenderedFrames == mBlurTimes.length) {
+                    mBlurTimes = Arrays.copyOf(mBlurTimes, mRenderedFrames * 2);
+                }
+                mBlurTimes[mRenderedFrames++] = time;
+            }
+        }
+
+        // Must be called from the worker thread
+        private void recordAllocation(Bitmap bitmap) {
+            mAllocatedBytes += bitmap.getRowBytes() * bitmap.getHeight();
+        }
+
         @Override
         protected void applyTransformation(float interpolatedTime, Transformation t) {
-            Bitmap bitmap = interpolatedTime >= 0.4f ? mDst : mSrc;
+            if (mStartTime == 0) {
+                mStartTime = SystemClock.uptimeMillis();
+            }
+            boolean crossFade = mEffect.isCrossFade();
+            if (crossFade) {
+                // Cross-fade around the middle, where the effect is stronger
+                mMix = Math.min(1f, Math.max(0f, (interpolatedTime - 0.3f) / 0.4f));
+                mShowingDst = mMix >= 0.5f;
+            } else {
+                mShowingDst = interpolatedTime >= 0.4f;
+            }
+            BlurBuffers buffers = mShowingDst ? mDstBuffers : mSrcBuffers;
+            CrossFadeDrawable drawable =
+                    mShowingDst ? mDstCrossFadeDrawable : mSrcCrossFadeDrawable;
             float delta = 0.5f - Math.abs(interpolatedTime - 0.5f);
+            if (mSrcKeyframes != null) {
+                // Just cross-fade the adjacent keyframes
+                Bitmap[] keyframes = mShowingDst ? mDstKeyframes : mSrcKeyframes;
+                float position = (delta / 0.5f) * mKeyframes;
+                int keyframe = Math.min((int) position, mKeyframes);
+                if (crossFade) {
+                    // Cross-fade the nearest keyframes of both bitmaps
+                    keyframe = Math.min(Math.round(position), mKeyframes);
+                    drawable.setFrames(mSrcKeyframes[keyframe], mDstKeyframes[keyframe], mMix);
+                } else if (keyframe == mKeyframes) {
+                    drawable.setFrames(keyframes[keyframe], null, 0f);
+                } else {
+                    drawable.setFrames(keyframes[keyframe], keyframes[keyframe + 1],
+                            position - keyframe);
+                }
+                setInternalDrawable(drawable);
+                return;
+            }
+
             int radius = (int) ((mMaxRadius * delta) / 0.5f);
             if (radius == 0) {
-                setInternalBitmap(bitmap);
+                showUnblurred(buffers);
+                mRequestedBuffers = null;
+                mLastBuffers = null;
+                return;
+            }
+
+            int factor = mDownsampleFactor;
+            int step = 1;
+            if (mQuality != null) {
+                factor = mQuality.getDownsampleFactor();
+                step = mQuality.getRadiusStep();
+            }
+            mRequestedBuffers = crossFade ? mSrcBuffers : buffers;
+            mRequestedRadius = toBlurRadius(radius, factor, step);
+            mRequestedFactor = factor;
+            if (isLastFrame()) {
+                mSkippedFrames++;
+            }
+            if (crossFade && mLastBuffers != null) {
+                // The mix changes on every frame, even if the frames don't
+                drawable.setFrames(mSrcFrame, mDstFrame, mMix);
+                setInternalDrawable(drawable);
+            }
+            requestFrame();
+        }
+
+        private void requestFrame() {
+            if (mRendering || mFinished || mRequestedBuffers == null) {
                 return;
             }
-            if (radius == mLastBlurRadius) {
+            if (isLastFrame()) {
                 return;
             }
 
-            Bitmap out = bitmap.copy(bitmap.getConfig(), true);
-            final Allocation input = Allocation.createFromBitmap(mRs, out,
-                    Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_SCRIPT);
-            final Allocation output = Allocation.createTyped(mRs, input.getType());
-            mScript.setRadius(radius);
-            mScript.setInput(input);
-            mScript.forEach(output);
-            output.copyTo(out);
-            setInternalBitmap(out);
+            mRenderBuffers = mRequestedBuffers;
+            mRenderRadius = mRequestedRadius;
+            mRenderFactor = mRequestedFactor;
+            mRendering = true;
+            getWorkerHandler().post(mRenderFrame);
+        }
 
-            mLastBlurRadius = radius;
+        // Whether the requested frame is the one on screen
+        private boolean isLastFrame() {
+            return mRequestedBuffers == mLastBuffers && mRequestedRadius == mLastBlurRadius
+                    && mRequestedFactor == mLastFactor;
         }
+
+        // Renders a frame into the back buffer and returns the time spent.
+        // Must be called from the worker thread
+        private long renderFrame(BlurBuffers buffers, int radius, int factor) {
+            if (buffers.mIn != null && buffers.mFactor != factor) {
+                // The quality changed. The front buffer could be on screen yet
+                retire(buffers);
+            }
+            if (buffers.mIn == null) {
+                Bitmap bitmap = buffers.mBitmap;
+                Bitmap.Config config = getBlurConfig(bitmap);
+                Bitmap in = downsample(bitmap, factor, config);
+                buffers.mFactor = factor;
+                buffers.mIn = in;
+                buffers.mBack = Bitmap.createBitmap(in.getWidth(), in.getHeight(), config);
+                buffers.mBackDrawable = new ScaledBitmapDrawable(getResources(),
+                        buffers.mBack, bitmap.getWidth(), bitmap.getHeight());
+                recordAllocation(buffers.mBack);
+                // Bitmaps blurred in tiles are double buffered too: rendering the tiles
+                // into the buffer on screen would show half blurred frames
+                buffers.mFront = Bitmap.createBitmap(in.getWidth(), in.getHeight(), config);
+                buffers.mFrontDrawable = new ScaledBitmapDrawable(getResources(),
+                        buffers.mFront, bitmap.getWidth(), bitmap.getHeight());
+                recordAllocation(buffers.mFront);
+                if (in != bitmap) {
+                    recordAllocation(in);
+                }
+                if (mCache != null) {
+                    buffers.mHash = BlurDiskCache.hash(in);
+                }
+            }
+
+            long start = System.nanoTime();
+            String key = render(buffers.mIn, buffers.mHash, buffers.mBack, radius, factor);
+            long time = System.nanoTime() - start;
+            if (key != null) {
+                mCache.put(key, buffers.mBack);
+            }
+            return time;
+        }
+
+        // Must be called from the worker thread
+        private void onFrameRendered(long time) {
+            if (mQuality != null && mQuality.onFrameRendered(time)) {
+                final int downsampleFactor = mQuality.getDownsampleFactor();
+                final int radiusStep = mQuality.getRadiusStep();
+                final float frameTime = mQuality.getAverageFrameTime() / 1000000f;
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        notifyQualityChanged(downsampleFactor, radiusStep, frameTime);
+                    }
+                });
+            }
+        }
+
+        // Must be called from the worker thread
+        private void retire(BlurBuffers buffers) {
+            getEngine(buffers.mIn).release(buffers.mIn);
+            if (buffers.mIn != buffers.mBitmap) {
+                buffers.mIn.recycle();
+            }
+            mRetiredBitmaps.add(buffers.mFront);
+            mRetiredBitmaps.add(buffers.mBack);
+            buffers.mIn = null;
+            buffers.mHash = null;
+            buffers.mFront = null;
+            buffers.mBack = null;
+            buffers.mFrontDrawable = null;
+            buffers.mBackDrawable = null;
+        }
+
+        private void deliverFrame(BlurBuffers buffers, int radius, int factor) {
+            mRendering = false;
+            if (mFinished || mSrcKeyframes != null) {
+                // A frame requested before the keyframes were ready is stale now
+                return;
+            }
+
+            // Show the frame unless the animation moved to other bitmap (or to the
+            // unblurred one) meanwhile. In that case the frame is just dropped
+            if (mRequestedBuffers == buffers) {
+                buffers.swap();
+                if (mEffect.isCrossFade()) {
+                    mDstBuffers.swap();
+                    mSrcFrame = mSrcBuffers.mFront;
+                    mDstFrame = mDstBuffers.mFront;
+                    CrossFadeDrawable drawable =
+                            mShowingDst ? mDstCrossFadeDrawable : mSrcCrossFadeDrawable;
+                    drawable.setFrames(mSrcFrame, mDstFrame, mMix);
+                    setInternalDrawable(drawable);
+                } else {
+                    setInternalDrawable(buffers.mFrontDrawable);
+                }
+                mLastBuffers = buffers;
+                mLastBlurRadius = radius;
+                mLastFactor = factor;
+            }
+
+            // Catch up with the latest requested frame
+            requestFrame();
+        }
+
+        private void showUnblurred(BlurBuffers buffers) {
+            if (buffers.mDrawable == null) {
+                buffers.mDrawable = new BitmapDrawable(getResources(), buffers.mBitmap);
+            }
+            setInternalDrawable(buffers.mDrawable);
+        }
+
+        private void finish() {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            mCancelled = true;
+
+            // Leave the unblurred bitmap on screen. It will be the source of the
+            // next animation
+            BlurBuffers buffers = mShowingDst ? mDstBuffers : mSrcBuffers;
+            if (!isDisplayed(buffers.mBitmap)) {
+                showUnblurred(buffers);
+            }
+            recycleKeyframes(mSrcKeyframes);
+            recycleKeyframes(mDstKeyframes);
+            mSrcKeyframes = null;
+            mDstKeyframes = null;
+
+            // The worker could still be using the buffers and the bitmaps, so
+            // release them after any pending work
+            final boolean releaseSrc = !isDisplayed(mSrc);
+            final boolean releaseDst = !isDisplayed(mDst);
+            final int skippedFrames = mSkippedFrames;
+            final long wallTime = mStartTime == 0 ? 0 : SystemClock.uptimeMillis() - mStartTime;
+            getWorkerHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mKeyframeJob != null) {
+                        mKeyframeJob.abort();
+                    }
+                    release(mSrcBuffers);
+                    release(mDstBuffers);
+                    for (Bitmap bitmap : mRetiredBitmaps) {
+                        bitmap.recycle();
+                    }
+                    mRetiredBitmaps.clear();
+                    if (mEngineBytes >= 0) {
+                        mAllocatedBytes += mEngine.getAllocatedBytes() - mEngineBytes;
+                    }
+                    if (mTiledEngine != null) {
+                        mAllocatedBytes += mTiledEngine.getAllocatedBytes();
+                        mTiledEngine.destroy();
+                        mTiledEngine = null;
+                    }
+                    final TransitionStats stats = mStatsListener == null ? null
+                            : new TransitionStats(mBlurTimes, mRenderedFrames, skippedFrames,
+                                    mRenderedKeyframes, mKeyframeTime, mAllocatedBytes,
+                                    wallTime, getDuration());
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (releaseSrc) {
+                                releaseBitmap(mSrc);
+                            }
+                            if (releaseDst) {
+                                releaseBitmap(mDst);
+                            }
+                            if (stats != null) {
+                                mStatsListener.onTransitionStats(stats);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        private void release(BlurBuffers buffers) {
+            if (buffers.mIn != null) {
+                getEngine(buffers.mIn).release(buffers.mIn);
+                if (buffers.mIn != buffers.mBitmap) {
+                    buffers.mIn.recycle();
+                }
+                buffers.mFront.recycle();
+                buffers.mBack.recycle();
+                buffers.mIn = null;
+                buffers.mHash = null;
+                buffers.mFront = null;
+                buffers.mBack = null;
+                buffers.mFrontDrawable = null;
+                buffers.mBackDrawable = null;
+            }
+        }
+
+        private void recycleKeyframes(Bitmap[] keyframes) {
+            if (keyframes != null) {
+                // The first keyframe is the unblurred bitmap
+                for (int i = 1; i < keyframes.length; i++) {
+                    if (keyframes[i] != null) {
+                        keyframes[i].recycle();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A listener notified when the view doesn't need a bitmap anymore. If no listener is
+     * set, the view recycles the bitmaps itself.
+     */
+    public interface OnBitmapReleasedListener {
+        void onBitmapReleased(Bitmap bitmap);
     }
 
-    private RenderScript mRs;
+    /**
+     * A listener notified when the adaptive quality changes the blur quality.
+     */
+    public interface OnQualityChangedListener {
+        /**
+         * @param downsampleFactor the downsample factor now in use
+         * @param radiusStep the step used to quantize the blur radius
+         * @param frameTime the average time (in milliseconds) of the last frames
+         */
+        void onQualityChanged(int downsampleFactor, int radiusStep, float frameTime);
+    }
+
+    /**
+     * A listener notified with the stats of every transition once it ends.
+     */
+    public interface OnTransitionStatsListener {
+        void onTransitionStats(TransitionStats stats);
+    }
+
+    private static HandlerThread sWorker;
+    private static Handler sWorkerHandler;
+
+    // A process-wide thread where the heavy blur work is done
+    private static synchronized Handler getWorkerHandler() {
+        if (sWorkerHandler == null) {
+            sWorker = new HandlerThread("BlurredTransitionWorker",
+                    Process.THREAD_PRIORITY_DISPLAY);
+            sWorker.start();
+            sWorkerHandler = new Handler(sWorker.getLooper());
+        }
+        return sWorkerHandler;
+    }
+
+    private BlurEngine mBlurEngine;
+    private boolean mOwnsBlurEngine;
+    private TransitionEffect mTransitionEffect;
     private BlurredTransitionAnimation mBlurAnim;
+    private Runnable mStartBlurAnim;
+    private OnBitmapReleasedListener mOnBitmapReleasedListener;
+    private OnQualityChangedListener mOnQualityChangedListener;
+    private OnTransitionStatsListener mOnTransitionStatsListener;
+    private BlurQualityController mQuality;
 
     private int mMaxRadius;
     private int mTransitionDuration;
+    private int mDownsampleFactor;
+    private int mKeyframes;
+    private int mKeyframesDeadline;
+    private boolean mAdaptiveQuality;
+    private int mFrameBudget;
+    private int mTileSize;
+    private BlurDiskCache mBlurCache;
+    private boolean mLowPrecision;
 
     public BlurredTransitionImageView(Context context) {
         this(context, null, 0);
@@ -98,21 +919,57 @@ public class BlurredTransitionImageView extends ImageView {
 
     public BlurredTransitionImageView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
-        try {
-            mRs = RenderScript.create(context, ContextType.NORMAL);
-        } catch (RSRuntimeException ex) {
-            Log.w(TAG, "RenderScript is not supported", ex);
-        }
 
         TypedArray a = context.obtainStyledAttributes(attrs,
                 R.styleable.BlurredTransitionImageView);
+        setDownsampleFactor(a.getInt(R.styleable.BlurredTransitionImageView_downsampleFactor,
+                DEFAULT_DOWNSAMPLE_FACTOR));
         setMaxRadius(a.getInt(R.styleable.BlurredTransitionImageView_maxRadius,
                 DEFAULT_BLUR_MAX_RADIUS));
         mTransitionDuration = a.getInt(R.styleable.BlurredTransitionImageView_duration,
                 DEFAULT_TRANSITION_DURATION);
+        setKeyframes(a.getInt(R.styleable.BlurredTransitionImageView_keyframes,
+                DEFAULT_KEYFRAMES));
+        mKeyframesDeadline = a.getInt(R.styleable.BlurredTransitionImageView_keyframesDeadline,
+                DEFAULT_KEYFRAMES_DEADLINE);
+        mFrameBudget = a.getInt(R.styleable.BlurredTransitionImageView_frameBudget,
+                DEFAULT_FRAME_BUDGET);
+        mTileSize = a.getInt(R.styleable.BlurredTransitionImageView_tileSize,
+                DEFAULT_TILE_SIZE);
+        setTransitionEffect(createTransitionEffect(
+                a.getInt(R.styleable.BlurredTransitionImageView_effect, EFFECT_BLUR)));
+        mLowPrecision = a.getBoolean(R.styleable.BlurredTransitionImageView_lowPrecision,
+                DEFAULT_LOW_PRECISION);
+        setAdaptiveQuality(a.getBoolean(R.styleable.BlurredTransitionImageView_adaptiveQuality,
+                false));
         a.recycle();
     }
 
+    private static TransitionEffect createTransitionEffect(int effect) {
+        switch (effect) {
+            case EFFECT_BLUR_CROSS_FADE:
+                return new BlurEffect(true);
+            case EFFECT_PIXELATE:
+                return new PixelateEffect();
+            case EFFECT_DESATURATE:
+                return new DesaturateEffect();
+            default:
+                return new BlurEffect();
+        }
+    }
+
+    public TransitionEffect getTransitionEffect() {
+        return mTransitionEffect;
+    }
+
+    /**
+     * Sets the effect of the transitions. The effect is only used from the worker thread.
+     */
+    public void setTransitionEffect(TransitionEffect effect) {
+        cancelBlurAnimation();
+        mTransitionEffect = effect != null ? effect : new BlurEffect();
+    }
+
     public int getMaxRadius() {
         return mMaxRadius;
     }
@@ -120,7 +977,122 @@ public class BlurredTransitionImageView extends ImageView {
     public void setMaxRadius(int maxRadius) {
         mMaxRadius = maxRadius;
         if (mMaxRadius < 0) mMaxRadius = 0;
-        else if (mMaxRadius > 25) mMaxRadius = 25;
+        else if (mMaxRadius > getMaxAllowedRadius()) mMaxRadius = getMaxAllowedRadius();
+    }
+
+    public int getDownsampleFactor() {
+        return mDownsampleFactor;
+    }
+
+    /**
+     * Sets the factor (1, 2, 4 or 8) used to downsample the bitmaps before blurring
+     * them. The blur is upscaled when drawn, so a factor of n allows visual radius
+     * up to n * 25.
+     */
+    public void setDownsampleFactor(int downsampleFactor) {
+        int factor = 1;
+        while (factor < downsampleFactor && factor < 8) {
+            factor *= 2;
+        }
+        mDownsampleFactor = factor;
+        setMaxRadius(mMaxRadius);
+        resetQuality();
+    }
+
+    private int getMaxAllowedRadius() {
+        return MAX_BLUR_RADIUS * mDownsampleFactor;
+    }
+
+    public boolean isAdaptiveQuality() {
+        return mAdaptiveQuality;
+    }
+
+    /**
+     * Sets whether the view measures the time of the blurred frames and adapts the
+     * quality to them. Over the frame budget, the downsample factor is raised (up to 8)
+     * and then the radius is quantized more coarsely. With enough headroom, the quality
+     * is restored up to the configured downsample factor. Keyframes are not affected.
+     */
+    public void setAdaptiveQuality(boolean adaptiveQuality) {
+        mAdaptiveQuality = adaptiveQuality;
+        resetQuality();
+    }
+
+    public int getFrameBudget() {
+        return mFrameBudget;
+    }
+
+    /**
+     * Sets the max time (in milliseconds) of a blurred frame for the adaptive quality.
+     */
+    public void setFrameBudget(int frameBudget) {
+        mFrameBudget = frameBudget;
+        resetQuality();
+    }
+
+    public void setOnQualityChangedListener(OnQualityChangedListener listener) {
+        mOnQualityChangedListener = listener;
+    }
+
+    /**
+     * Sets a listener notified with the stats of the transitions. The stats are only
+     * collected while a listener is set.
+     */
+    public void setOnTransitionStatsListener(OnTransitionStatsListener listener) {
+        mOnTransitionStatsListener = listener;
+    }
+
+    private void notifyQualityChanged(int downsampleFactor, int radiusStep, float frameTime) {
+        if (mOnQualityChangedListener != null) {
+            mOnQualityChangedListener.onQualityChanged(downsampleFactor, radiusStep, frameTime);
+        }
+    }
+
+    // The quality learned by a transition is kept for the next ones
+    private void resetQuality() {
+        mQuality = mAdaptiveQuality
+                ? new BlurQualityController(mDownsampleFactor, mFrameBudget * 1000000L)
+                : null;
+    }
+
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    /**
+     * Sets the size (in pixels) of the tiles used to blur big bitmaps, so the memory
+     * used by the blur engine doesn't depend on their size. The result is the same as
+     * blurring the whole bitmap. The frames are still double buffered at the
+     * downsampled size. 0 disables the tiles.
+     */
+    public void setTileSize(int tileSize) {
+        mTileSize = Math.max(0, tileSize);
+    }
+
+    public boolean isLowPrecision() {
+        return mLowPrecision;
+    }
+
+    /**
+     * Sets whether the blurred frames of opaque bitmaps are RGB_565 instead of the
+     * config of the bitmaps. Heavily blurred frames don't show the lost precision,
+     * and it halves their memory and the bandwidth to blur and draw them.
+     */
+    public void setLowPrecision(boolean lowPrecision) {
+        mLowPrecision = lowPrecision;
+    }
+
+    public BlurDiskCache getBlurCache() {
+        return mBlurCache;
+    }
+
+    /**
+     * Sets a disk cache of blurred frames, so the transitions between already seen
+     * bitmaps load the frames instead of blurring them again. The cache is only used
+     * from the worker thread.
+     */
+    public void setBlurCache(BlurDiskCache cache) {
+        mBlurCache = cache;
     }
 
     public int getTransitionDuration() {
@@ -131,9 +1103,102 @@ public class BlurredTransitionImageView extends ImageView {
         mTransitionDuration = transitionDuration;
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (mBlurEngine == null) {
+            // The RenderScript context is shared by all the views of the process
+            try {
+                mBlurEngine = new RenderScriptBlurEngine(getContext());
+            } catch (RSRuntimeException ex) {
+                Log.w(TAG, "RenderScript is not supported. Fallback to java blur", ex);
+                mBlurEngine = new JavaBlurEngine();
+            }
+            mOwnsBlurEngine = true;
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        cancelBlurAnimation();
+        if (mOwnsBlurEngine) {
+            destroyBlurEngine(mBlurEngine);
+            mBlurEngine = null;
+        }
+        super.onDetachedFromWindow();
+    }
+
+    private static void destroyBlurEngine(final BlurEngine engine) {
+        // Destroy it after any pending work
+        getWorkerHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                engine.destroy();
+            }
+        });
+    }
+
+    public BlurEngine getBlurEngine() {
+        return mBlurEngine;
+    }
+
+    /**
+     * Sets the engine used to blur the bitmaps. The engine is only used from the
+     * worker thread. The caller is responsible of destroying it.
+     */
+    public void setBlurEngine(BlurEngine engine) {
+        cancelBlurAnimation();
+        if (mOwnsBlurEngine && mBlurEngine != null) {
+            destroyBlurEngine(mBlurEngine);
+        }
+        mBlurEngine = engine;
+        mOwnsBlurEngine = false;
+    }
+
+    public void setOnBitmapReleasedListener(OnBitmapReleasedListener listener) {
+        mOnBitmapReleasedListener = listener;
+    }
+
+    private void releaseBitmap(Bitmap bitmap) {
+        if (mOnBitmapReleasedListener != null) {
+            mOnBitmapReleasedListener.onBitmapReleased(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+    public int getKeyframes() {
+        return mKeyframes;
+    }
+
+    /**
+     * Sets the number of blur keyframes rendered in background before a transition
+     * starts. The transition then just cross-fades the adjacent keyframes. 0 blurs
+     * every frame on demand.
+     */
+    public void setKeyframes(int keyframes) {
+        mKeyframes = Math.max(0, keyframes);
+    }
+
+    public int getKeyframesDeadline() {
+        return mKeyframesDeadline;
+    }
+
+    /**
+     * Sets the max time (in milliseconds) to wait for the keyframes. Passed the
+     * deadline the transition starts blurring on demand until they are ready.
+     */
+    public void setKeyframesDeadline(int keyframesDeadline) {
+        mKeyframesDeadline = keyframesDeadline;
+    }
+
     @Override
     public void setImageResource(int resId) {
-        performBlurAnimation(BitmapFactory.decodeResource(getResources(), resId));
+        // Decode only the pixels that will be displayed
+        int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        performBlurAnimation(BitmapLoader.decodeBitmap(getResources(), resId,
+                width, height, getScaleType()));
     }
 
     @Override
@@ -153,22 +1218,123 @@ public class BlurredTransitionImageView extends ImageView {
         super.setImageDrawable(new BitmapDrawable(getContext().getResources(), bm));
     }
 
-    private synchronized void performBlurAnimation(Bitmap dst) {
-        if (mRs == null) {
-            Log.w(TAG, "RenderScript is not supported");
-            setInternalBitmap(dst);
-            return;
+    private void setInternalDrawable(Drawable drawable) {
+        if (getDrawable() == drawable) {
+            // The drawable content changed, just redraw it
+            invalidate();
+        } else {
+            super.setImageDrawable(drawable);
         }
+    }
 
-        if (getDrawable() != null) {
-            if (mBlurAnim != null) {
-                mBlurAnim.cancel();
-                mBlurAnim = null;
+    // Returns where the view would show a bitmap, in the coordinates of other bitmap
+    // shown by the view. Returns null if the view isn't laid out yet
+    private RectF mapBitmap(Bitmap bitmap, Bitmap into) {
+        Matrix matrix = new Matrix();
+        Matrix intoMatrix = new Matrix();
+        Matrix inverse = new Matrix();
+        if (!computeImageMatrix(bitmap.getWidth(), bitmap.getHeight(), matrix)
+                || !computeImageMatrix(into.getWidth(), into.getHeight(), intoMatrix)
+                || !intoMatrix.invert(inverse)) {
+            return null;
+        }
+        matrix.postConcat(inverse);
+        RectF rect = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        matrix.mapRect(rect);
+        return rect;
+    }
+
+    // Computes the matrix used by ImageView to show a drawable of the passed size
+    // with the scale type of the view. Returns false if the view isn't laid out yet
+    private boolean computeImageMatrix(int width, int height, Matrix matrix) {
+        final int vwidth = getWidth() - getPaddingLeft() - getPaddingRight();
+        final int vheight = getHeight() - getPaddingTop() - getPaddingBottom();
+        if (vwidth <= 0 || vheight <= 0 || width <= 0 || height <= 0) {
+            return false;
+        }
+
+        final ScaleType scaleType = getScaleType();
+        switch (scaleType) {
+            case MATRIX:
+                matrix.set(getImageMatrix());
+                break;
+            case FIT_XY:
+                matrix.setScale(vwidth / (float) width, vheight / (float) height);
+                break;
+            case CENTER:
+                matrix.setTranslate(Math.round((vwidth - width) * 0.5f),
+                        Math.round((vheight - height) * 0.5f));
+                break;
+            case CENTER_CROP: {
+                float scale;
+                float dx = 0, dy = 0;
+                if (width * vheight > vwidth * height) {
+                    scale = vheight / (float) height;
+                    dx = (vwidth - width * scale) * 0.5f;
+                } else {
+                    scale = vwidth / (float) width;
+                    dy = (vheight - height * scale) * 0.5f;
+                }
+                matrix.setScale(scale, scale);
+                matrix.postTranslate(Math.round(dx), Math.round(dy));
+                break;
+            }
+            case CENTER_INSIDE: {
+                float scale = width <= vwidth && height <= vheight ? 1f
+                        : Math.min(vwidth / (float) width, vheight / (float) height);
+                matrix.setScale(scale, scale);
+                matrix.postTranslate(Math.round((vwidth - width * scale) * 0.5f),
+                        Math.round((vheight - height * scale) * 0.5f));
+                break;
             }
+            default: {
+                Matrix.ScaleToFit scaleToFit = scaleType == ScaleType.FIT_START
+                        ? Matrix.ScaleToFit.START
+                        : (scaleType == ScaleType.FIT_END
+                                ? Matrix.ScaleToFit.END : Matrix.ScaleToFit.CENTER);
+                matrix.setRectToRect(new RectF(0, 0, width, height),
+                        new RectF(0, 0, vwidth, vheight), scaleToFit);
+                break;
+            }
+        }
+        return true;
+    }
+
+    private boolean isDisplayed(Bitmap bm) {
+        Drawable drawable = getDrawable();
+        return drawable instanceof BitmapDrawable
+                && ((BitmapDrawable) drawable).getBitmap() == bm;
+    }
+
+    private void cancelBlurAnimation() {
+        if (mStartBlurAnim != null) {
+            removeCallbacks(mStartBlurAnim);
+            mStartBlurAnim = null;
+        }
+        if (mBlurAnim != null) {
+            // A not yet started animation doesn't notify its end
+            BlurredTransitionAnimation anim = mBlurAnim;
+            mBlurAnim = null;
+            anim.cancel();
+            anim.finish();
+        }
+    }
+
+    private synchronized void performBlurAnimation(Bitmap dst) {
+        if (getDrawable() != null && mBlurEngine != null) {
+            cancelBlurAnimation();
             final Bitmap src = ((BitmapDrawable) getDrawable()).getBitmap();
-            mBlurAnim = new BlurredTransitionAnimation(mRs, src, dst);
+            final BlurredTransitionAnimation anim = new BlurredTransitionAnimation(
+                    mBlurEngine, mTransitionEffect, src, dst);
+            mBlurAnim = anim;
             mBlurAnim.setDuration(mTransitionDuration);
             mBlurAnim.setMaxRadius(mMaxRadius);
+            mBlurAnim.setDownsampleFactor(mDownsampleFactor);
+            mBlurAnim.setQualityController(mQuality);
+            mBlurAnim.setTileSize(mTileSize);
+            mBlurAnim.setBlurCache(mBlurCache);
+            mBlurAnim.setLowPrecision(mLowPrecision);
+            mBlurAnim.setStatsListener(mOnTransitionStatsListener);
             mBlurAnim.setAnimationListener(new AnimationListener() {
                 @Override
                 public void onAnimationStart(Animation animation) {}
@@ -177,11 +1343,30 @@ public class BlurredTransitionImageView extends ImageView {
     
                 @Override
                 public void onAnimationEnd(Animation animation) {
-                    mBlurAnim = null;
-                    src.recycle();
+                    if (mBlurAnim == anim) {
+                        mBlurAnim = null;
+                    }
+                    anim.finish();
                 }
             });
-            startAnimation(mBlurAnim);
+
+            if (mKeyframes > 0) {
+                // Start once the keyframes are ready or the deadline passed, whatever
+                // happens first
+                mStartBlurAnim = new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mStartBlurAnim == this) {
+                            mStartBlurAnim = null;
+                            startAnimation(anim);
+                        }
+                    }
+                };
+                anim.prepareKeyframes(mKeyframes, mStartBlurAnim);
+                postDelayed(mStartBlurAnim, mKeyframesDeadline);
+            } else {
+                startAnimation(mBlurAnim);
+            }
         } else {
             setInternalBitmap(dst);
         }
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.blurredtransition;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+
+/**
+ * An effect that desaturates the bitmaps, up to grayscale at the max level.
+ */
+public class DesaturateEffect implements TransitionEffect {
+
+    private final Canvas mCanvas = new Canvas();
+    private final Paint mPaint = new Paint();
+    private final ColorMatrix mMatrix = new ColorMatrix();
+    // The filter of every level, for the current max level
+    private ColorMatrixColorFilter[] mFilters;
+    private int mMaxLevel;
+
+    public DesaturateEffect() {
+        mPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    @Override
+    public String getName() {
+        return "desaturate";
+    }
+
+    @Override
+    public boolean isCrossFade() {
+        return false;
+    }
+
+    @Override
+    public void render(BlurEngine engine, Bitmap in, Bitmap out, int level, int maxLevel) {
+        int max = Math.max(1, maxLevel);
+        mPaint.setColorFilter(getFilter(Math.max(0, Math.min(level, max)), max));
+        mCanvas.setBitmap(out);
+        mCanvas.drawBitmap(in, 0, 0, mPaint);
+        mCanvas.setBitmap(null);
+    }
+
+    private ColorMatrixColorFilter getFilter(int level, int maxLevel) {
+        if (mFilters == null || mMaxLevel != maxLevel) {
+            mFilters = new ColorMatrixColorFilter[maxLevel + 1];
+            mMaxLevel = maxLevel;
+        }
+        if (mFilters[level] == null) {
+            mMatrix.setSaturation(1f - level / (float) maxLevel);
+            mFilters[level] = new ColorMatrixColorFilter(mMatrix);
+        }
+        return mFilters[level];
+    }
+}
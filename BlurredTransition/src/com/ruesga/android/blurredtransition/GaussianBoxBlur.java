@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.blurredtransition;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A pure java blur of ARGB pixels that approximates a gaussian blur with successive
+ * separable box blurs. Every pass is split in stripes of rows (or columns) that are
+ * blurred in parallel. This class doesn't depend on the Android framework, so it can
+ * run in a plain JVM.
+ */
+public class GaussianBoxBlur {
+
+    private static final int DEFAULT_PASSES = 3;
+
+    private final ExecutorService mExecutor;
+    private final int mParallelism;
+    private final int mPasses;
+
+    /**
+     * Creates a blur that runs in the calling thread.
+     */
+    public GaussianBoxBlur() {
+        this(null, 1);
+    }
+
+    /**
+     * Creates a blur that splits every pass in {@code parallelism} stripes blurred
+     * in the passed executor.
+     */
+    public GaussianBoxBlur(ExecutorService executor, int parallelism) {
+        this(executor, parallelism, DEFAULT_PASSES);
+    }
+
+    public GaussianBoxBlur(ExecutorService executor, int parallelism, int passes) {
+        mExecutor = executor;
+        mParallelism = executor == null ? 1 : Math.max(1, parallelism);
+        mPasses = Math.max(1, passes);
+    }
+
+    /**
+     * Returns the standard deviation of the gaussian blur of the passed radius. It's the
+     * same relation used by ScriptIntrinsicBlur, so both blurs look alike.
+     */
+    public static float radiusToSigma(float radius) {
+        return radius * 0.4f + 0.6f;
+    }
+
+    /**
+     * Returns the radius of every box blur pass that approximates a gaussian blur
+     * of the passed standard deviation.
+     */
+    public static int[] boxRadii(float sigma, int passes) {
+        double wIdeal = Math.sqrt((12 * sigma * sigma / passes) + 1);
+        int wl = (int) Math.floor(wIdeal);
+        if (wl % 2 == 0) {
+            wl--;
+        }
+        int wu = wl + 2;
+        double mIdeal = (12 * sigma * sigma - passes * wl * wl - 4 * passes * wl - 3 * passes)
+                / (-4.0 * wl - 4);
+        long m = Math.round(mIdeal);
+
+        int[] radii = new int[passes];
+        for (int i = 0; i < passes; i++) {
+            radii[i] = ((i < m ? wl : wu) - 1) / 2;
+        }
+        return radii;
+    }
+
+    /**
+     * Returns how far (in pixels) the blur of the passed radius reaches. Pixels farther
+     * than this from an edge are not affected by the edge.
+     */
+    public int getReach(float radius) {
+        int reach = 0;
+        for (int r : boxRadii(radiusToSigma(radius), mPasses)) {
+            reach += r;
+        }
+        return reach;
+    }
+
+    /**
+     * Blurs the pixels in place. Pixels with alpha must be premultiplied.
+     *
+     * @param pixels the ARGB pixels, row by row
+     * @param scratch a buffer with room for at least {@code width * height} pixels
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param radius the blur radius
+     */
+    public void blur(final int[] pixels, final int[] scratch,
+            final int width, final int height, float radius) {
+        if (width <= 0 || height <= 0 || radius <= 0) {
+            return;
+        }
+        for (final int r : boxRadii(radiusToSigma(radius), mPasses)) {
+            if (r <= 0) {
+                continue;
+            }
+            runStripes(height, new Stripe() {
+                @Override
+                public void run(int from, int to) {
+                    blurRows(pixels, scratch, width, r, from, to);
+                }
+            });
+            runStripes(width, new Stripe() {
+                @Override
+                public void run(int from, int to) {
+                    blurColumns(scratch, pixels, width, height, r, from, to);
+                }
+            });
+        }
+    }
+
+    /**
+     * Converts unpremultiplied ARGB pixels (as returned by Bitmap#getPixels) to
+     * premultiplied ones. Pixels with alpha must be blurred premultiplied, otherwise the
+     * color of the transparent pixels bleeds into their neighbors.
+     */
+    public static void premultiply(int[] pixels, int count) {
+        for (int i = 0; i < count; i++) {
+            int p = pixels[i];
+            int a = p >>> 24;
+            if (a == 0xff) {
+                continue;
+            }
+            int r = (((p >> 16) & 0xff) * a + 127) / 255;
+            int g = (((p >> 8) & 0xff) * a + 127) / 255;
+            int b = ((p & 0xff) * a + 127) / 255;
+            pixels[i] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    /**
+     * Converts premultiplied ARGB pixels back to unpremultiplied ones.
+     */
+    public static void unpremultiply(int[] pixels, int count) {
+        for (int i = 0; i < count; i++) {
+            int p = pixels[i];
+            int a = p >>> 24;
+            if (a == 0xff) {
+                continue;
+            }
+            if (a == 0) {
+                pixels[i] = 0;
+                continue;
+            }
+            int half = a / 2;
+            int r = Math.min(0xff, (((p >> 16) & 0xff) * 255 + half) / a);
+            int g = Math.min(0xff, (((p >> 8) & 0xff) * 255 + half) / a);
+            int b = Math.min(0xff, ((p & 0xff) * 255 + half) / a);
+            pixels[i] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    private interface Stripe {
+        void run(int from, int to);
+    }
+
+    private void runStripes(int count, final Stripe stripe) {
+        int stripes = Math.min(mParallelism, count);
+        if (stripes <= 1) {
+            stripe.run(0, count);
+            return;
+        }
+
+        final CountDownLatch latch = new CountDownLatch(stripes - 1);
+        int size = (count + stripes - 1) / stripes;
+        for (int i = 1; i < stripes; i++) {
+            final int from = i * size;
+            final int to = Math.min(count, from + size);
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        stripe.run(from, to);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        // The calling thread blurs the first stripe
+        stripe.run(0, Math.min(count, size));
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Box blur of the rows [from, to) of src into dst. Edges are clamped
+    private static void blurRows(int[] src, int[] dst, int width, int r, int from, int to) {
+        final int d = 2 * r + 1;
+        final int half = d / 2;
+        final int last = width - 1;
+        for (int y = from; y < to; y++) {
+            final int row = y * width;
+            int a = 0, red = 0, green = 0, blue = 0;
+            for (int i = -r; i <= r; i++) {
+                int p = src[row + Math.min(Math.max(i, 0), last)];
+                a += p >>> 24;
+                red += (p >> 16) & 0xff;
+                green += (p >> 8) & 0xff;
+                blue += p & 0xff;
+            }
+            for (int x = 0; x < width; x++) {
+                dst[row + x] = (((a + half) / d) << 24) | (((red + half) / d) << 16)
+                        | (((green + half) / d) << 8) | ((blue + half) / d);
+
+                int in = src[row + Math.min(x + r + 1, last)];
+                int out = src[row + Math.max(x - r, 0)];
+                a += (in >>> 24) - (out >>> 24);
+                red += ((in >> 16) & 0xff) - ((out >> 16) & 0xff);
+                green += ((in >> 8) & 0xff) - ((out >> 8) & 0xff);
+                blue += (in & 0xff) - (out & 0xff);
+            }
+        }
+    }
+
+    // Box blur of the columns [from, to) of src into dst. Edges are clamped
+    private static void blurColumns(int[] src, int[] dst, int width, int height,
+            int r, int from, int to) {
+        final int d = 2 * r + 1;
+        final int half = d / 2;
+        final int last = height - 1;
+        for (int x = from; x < to; x++) {
+            int a = 0, red = 0, green = 0, blue = 0;
+            for (int i = -r; i <= r; i++) {
+                int p = src[Math.min(Math.max(i, 0), last) * width + x];
+                a += p >>> 24;
+                red += (p >> 16) & 0xff;
+                green += (p >> 8) & 0xff;
+                blue += p & 0xff;
+            }
+            for (int y = 0; y < height; y++) {
+                dst[y * width + x] = (((a + half) / d) << 24) | (((red + half) / d) << 16)
+                        | (((green + half) / d) << 8) | ((blue + half) / d);
+
+                int in = src[Math.min(y + r + 1, last) * width + x];
+                int out = src[Math.max(y - r, 0) * width + x];
+                a += (in >>> 24) - (out >>> 24);
+                red += ((in >> 16) & 0xff) - ((out >> 16) & 0xff);
+                green += ((in >> 8) & 0xff) - ((out >> 8) & 0xff);
+                blue += (in & 0xff) - (out & 0xff);
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.blurredtransition;
+
+import android.graphics.Bitmap;
+
+/**
+ * A {@link BlurEngine} that uses {@link GaussianBoxBlur}, so it doesn't depend on
+ * RenderScript. The pixel buffers are reused between blurs. Bitmaps of any config
+ * (ie. RGB_565) are blurred directly. Bitmaps with alpha are blurred premultiplied.
+ * The pixels are blurred by {@link JavaPixelBlur}.
+ */
+public class JavaBlurEngine implements BlurEngine {
+
+    private final JavaPixelBlur mBlur = new JavaPixelBlur();
+
+    @Override
+    public int getMaxRadius() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int getReach(int radius) {
+        return mBlur.getReach(radius);
+    }
+
+    @Override
+    public void blur(Bitmap in, Bitmap out, int radius) {
+        int width = in.getWidth();
+        int height = in.getHeight();
+        int[] pixels = mBlur.getPixels(width, height);
+        in.getPixels(pixels, 0, width, 0, 0, width, height);
+        // Bitmap pixels are unpremultiplied
+        mBlur.blur(width, height, in.hasAlpha(), radius);
+        out.setPixels(pixels, 0, width, 0, 0, width, height);
+    }
+
+    @Override
+    public void release(Bitmap in) {
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return mBlur.getAllocatedBytes();
+    }
+
+    @Override
+    public void destroy() {
+        mBlur.release();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.android.blurredtransition;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The pixel path of {@link JavaBlurEngine}: blurs ARGB pixels (as returned by
+ * Bitmap#getPixels) with a parallel {@link GaussianBoxBlur}, in a pixel buffer reused
+ * between blurs. Pixels with alpha are blurred premultiplied. This class doesn't depend
+ * on the Android framework, so the benchmark runs the same path in a plain JVM.
+ */
+public class JavaPixelBlur {
+
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService sExecutor;
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(PARALLELISM, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "JavaBlurEngine");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    private final GaussianBoxBlur mBlur;
+    private int[] mPixels;
+    private int[] mScratch;
+    private long mAllocatedBytes;
+
+    public JavaPixelBlur() {
+        mBlur = new GaussianBoxBlur(getExecutor(), PARALLELISM);
+    }
+
+    public int getReach(int radius) {
+        return mBlur.getReach(radius);
+    }
+
+    /**
+     * Returns the pixel buffer, with room for at least {@code width * height} pixels.
+     * Fill it (row by row) before calling {@link #blur(int, int, boolean, int)}.
+     */
+    public int[] getPixels(int width, int height) {
+        int size = width * height;
+        if (mPixels == null || mPixels.length < size) {
+            mPixels = new int[size];
+            mScratch = new int[size];
+            mAllocatedBytes += 2L * size * 4;
+        }
+        return mPixels;
+    }
+
+    /**
+     * Blurs the pixel buffer in place.
+     *
+     * @param alpha whether the pixels have alpha. They are unpremultiplied before and
+     * after the blur
+     */
+    public void blur(int width, int height, boolean alpha, int radius) {
+        int size = width * height;
+        if (alpha) {
+            GaussianBoxBlur.premultiply(mPixels, size);
+        }
+        mBlur.blur(mPixels, mScratch, width, height, radius);
+        if (alpha) {
+            GaussianBoxBlur.unpremultiply(mPixels, size);
+        }
+    }
+
+    /**
+     * Returns the bytes of the pixel buffers allocated so far.
+     */
+    public long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    /**
+     * Releases the pixel buffers. They are allocated again by the next blur.
+     */
+    public void release() {
+        mPixels = null;
+        mScratch = null;
+    }
+}
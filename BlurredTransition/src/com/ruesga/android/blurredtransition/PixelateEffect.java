@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.blurredtransition;
+
+import android.graphics.Bitmap;
+
+/**
+ * An effect that pixelates the bitmaps in square blocks of the level size. The pixels
+ * of a block are averaged a row of blocks at a time, so only a buffer of a row of
+ * blocks is needed.
+ */
+public class PixelateEffect implements TransitionEffect {
+
+    private int[] mPixels;
+
+    @Override
+    public String getName() {
+        return "pixelate";
+    }
+
+    @Override
+    public boolean isCrossFade() {
+        return false;
+    }
+
+    @Override
+    public void render(BlurEngine engine, Bitmap in, Bitmap out, int level, int maxLevel) {
+        final int width = in.getWidth();
+        final int height = in.getHeight();
+        final int block = Math.max(1, level);
+        if (mPixels == null || mPixels.length < width * block) {
+            mPixels = new int[width * block];
+        }
+        final int[] pixels = mPixels;
+
+        for (int top = 0; top < height; top += block) {
+            final int rows = Math.min(block, height - top);
+            in.getPixels(pixels, 0, width, 0, top, width, rows);
+            for (int left = 0; left < width; left += block) {
+                final int columns = Math.min(block, width - left);
+                int a = 0, r = 0, g = 0, b = 0;
+                for (int y = 0; y < rows; y++) {
+                    for (int x = left, i = y * width + left; x < left + columns; x++, i++) {
+                        int p = pixels[i];
+                        a += p >>> 24;
+                        r += (p >> 16) & 0xff;
+                        g += (p >> 8) & 0xff;
+                        b += p & 0xff;
+                    }
+                }
+                final int count = rows * columns;
+                final int color = ((a / count) << 24) | ((r / count) << 16)
+                        | ((g / count) << 8) | (b / count);
+                for (int y = 0; y < rows; y++) {
+                    int i = y * width + left;
+                    for (int x = 0; x < columns; x++) {
+                        pixels[i++] = color;
+                    }
+                }
+            }
+            out.setPixels(pixels, 0, width, 0, top, width, rows);
+        }
+    }
+}
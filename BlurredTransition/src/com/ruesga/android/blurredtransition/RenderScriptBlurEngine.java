@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.blurredtransition;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.support.v8.renderscript.Allocation;
+import android.support.v8.renderscript.RenderScript;
+import android.support.v8.renderscript.ScriptIntrinsicBlur;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A {@link BlurEngine} that uses the RenderScript blur intrinsic. All the engines share
+ * the same process-wide RenderScript context and blur script.
+ */
+public class RenderScriptBlurEngine implements BlurEngine {
+
+    // ScriptIntrinsicBlur doesn't support radius greater than 25
+    private static final int MAX_BLUR_RADIUS = 25;
+
+    private static class Allocations {
+        private Allocation mInput;
+        private Allocation mOutput;
+        // The generation of the input bitmap copied into the input allocation
+        private int mGenerationId;
+
+        private void destroy() {
+            mInput.destroy();
+            mOutput.destroy();
+        }
+    }
+
+    private final SharedRenderScript mSharedRs;
+    private final RenderScript mRs;
+    // The input and output allocations of every input bitmap
+    private final Map<Bitmap, Allocations> mAllocations = new IdentityHashMap<>();
+    private long mAllocatedBytes;
+    private boolean mDestroyed;
+
+    // Bitmaps of other configs are converted from and to this ARGB_8888 bitmap, reused
+    // by all the bitmaps of the same size (ie. the tiles of a tiled blur)
+    private Bitmap mStaging;
+    private final Canvas mCanvas = new Canvas();
+    private final Paint mPaint = new Paint();
+
+    /**
+     * @throws android.support.v8.renderscript.RSRuntimeException if RenderScript
+     * isn't supported
+     */
+    public RenderScriptBlurEngine(Context context) {
+        mSharedRs = SharedRenderScript.acquire(context);
+        mRs = mSharedRs.getRenderScript();
+        // Copy the pixels as they are
+        mPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    @Override
+    public int getMaxRadius() {
+        return MAX_BLUR_RADIUS;
+    }
+
+    @Override
+    public int getReach(int radius) {
+        // The intrinsic is a separable gaussian with a kernel of the radius size
+        return Math.min(MAX_BLUR_RADIUS, Math.max(1, radius));
+    }
+
+    @Override
+    public void blur(Bitmap in, Bitmap out, int radius) {
+        // The intrinsic only blurs ARGB_8888 pixels. Other configs (ie. RGB_565)
+        // are blurred as ARGB_8888 and converted back
+        final boolean convert = in.getConfig() != Bitmap.Config.ARGB_8888;
+        Allocations allocations = mAllocations.get(in);
+        if (allocations == null) {
+            // The input allocation holds its own copy of the bitmap, so there is
+            // no need to copy the bitmap itself
+            Bitmap bitmap = convert ? toStaging(in) : in;
+            allocations = new Allocations();
+            allocations.mInput = Allocation.createFromBitmap(mRs, bitmap,
+                    Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_SCRIPT);
+            allocations.mOutput = Allocation.createTyped(mRs, allocations.mInput.getType());
+            allocations.mGenerationId = in.getGenerationId();
+            // The input and output allocations, of ARGB_8888 pixels
+            mAllocatedBytes += 2L * in.getWidth() * in.getHeight() * 4;
+            mAllocations.put(in, allocations);
+        } else if (allocations.mGenerationId != in.getGenerationId()) {
+            // The bitmap was modified (ie. a reused tile). Update the copy
+            allocations.mInput.copyFrom(convert ? toStaging(in) : in);
+            allocations.mGenerationId = in.getGenerationId();
+        }
+        synchronized (mSharedRs) {
+            ScriptIntrinsicBlur script = mSharedRs.getBlurScript();
+            script.setRadius(Math.min(MAX_BLUR_RADIUS, Math.max(1, radius)));
+            script.setInput(allocations.mInput);
+            script.forEach(allocations.mOutput);
+        }
+
+        if (out.getConfig() == Bitmap.Config.ARGB_8888) {
+            allocations.mOutput.copyTo(out);
+        } else {
+            Bitmap staging = getStaging(out.getWidth(), out.getHeight());
+            allocations.mOutput.copyTo(staging);
+            draw(staging, out);
+        }
+    }
+
+    // Returns the staging bitmap with the pixels of the passed bitmap
+    private Bitmap toStaging(Bitmap in) {
+        Bitmap staging = getStaging(in.getWidth(), in.getHeight());
+        draw(in, staging);
+        return staging;
+    }
+
+    private Bitmap getStaging(int width, int height) {
+        if (mStaging == null || mStaging.getWidth() != width
+                || mStaging.getHeight() != height) {
+            recycleStaging();
+            mStaging = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mAllocatedBytes += mStaging.getByteCount();
+        }
+        return mStaging;
+    }
+
+    private void draw(Bitmap src, Bitmap dst) {
+        mCanvas.setBitmap(dst);
+        mCanvas.drawBitmap(src, 0, 0, mPaint);
+        mCanvas.setBitmap(null);
+    }
+
+    private void recycleStaging() {
+        if (mStaging != null) {
+            mStaging.recycle();
+            mStaging = null;
+        }
+    }
+
+    @Override
+    public void release(Bitmap in) {
+        Allocations allocations = mAllocations.remove(in);
+        if (allocations != null) {
+            allocations.destroy();
+        }
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    @Override
+    public void destroy() {
+        for (Allocations allocations : mAllocations.values()) {
+            allocations.destroy();
+        }
+        mAllocations.clear();
+        recycleStaging();
+        if (!mDestroyed) {
+            mDestroyed = true;
+            SharedRenderScript.release();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.blurredtransition;
+
+import android.content.Context;
+import android.support.v8.renderscript.Element;
+import android.support.v8.renderscript.RSRuntimeException;
+import android.support.v8.renderscript.RenderScript;
+import android.support.v8.renderscript.RenderScript.ContextType;
+import android.support.v8.renderscript.ScriptIntrinsicBlur;
+
+/**
+ * A process-wide RenderScript context and blur script, shared by reference counting.
+ * Creating a RenderScript context is expensive and holds native resources, so it's
+ * created on the first {@link #acquire(Context)} and destroyed on the last
+ * {@link #release()}.
+ */
+public class SharedRenderScript {
+
+    private static SharedRenderScript sInstance;
+    private static int sReferences;
+
+    private final RenderScript mRs;
+    private final ScriptIntrinsicBlur mBlurScript;
+
+    private SharedRenderScript(Context context) {
+        mRs = RenderScript.create(context.getApplicationContext(), ContextType.NORMAL);
+        try {
+            mBlurScript = ScriptIntrinsicBlur.create(mRs, Element.U8_4(mRs));
+        } catch (RSRuntimeException ex) {
+            mRs.destroy();
+            throw ex;
+        }
+    }
+
+    /**
+     * Acquires a reference to the shared context. Every call must be balanced with
+     * a call to {@link #release()}.
+     *
+     * @throws RSRuntimeException if RenderScript isn't supported
+     */
+    public static synchronized SharedRenderScript acquire(Context context) {
+        if (sInstance == null) {
+            sInstance = new SharedRenderScript(context);
+        }
+        sReferences++;
+        return sInstance;
+    }
+
+    /**
+     * Releases a reference to the shared context, destroying it if it was the last one.
+     */
+    public static synchronized void release() {
+        if (sReferences > 0) {
+            sReferences--;
+            if (sReferences == 0) {
+                sInstance.mBlurScript.destroy();
+                sInstance.mRs.destroy();
+                sInstance = null;
+            }
+        }
+    }
+
+    public RenderScript getRenderScript() {
+        return mRs;
+    }
+
+    /**
+     * Returns the cached blur script. It's shared by all the users of the context, so it
+     * must be used holding the lock of this object.
+     */
+    public ScriptIntrinsicBlur getBlurScript() {
+        return mBlurScript;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.blurredtransition;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+/**
+ * A {@link BlurEngine} that blurs big bitmaps in overlapping tiles with other engine,
+ * so the memory used by the engine depends on the tile size instead of the bitmap size.
+ * <p/>
+ * Tiles overlap by the reach of the blur (see {@link BlurTiles}), so the result is
+ * identical to the blur of the whole bitmap. Tiles keep a constant size, so the same
+ * pair of tile bitmaps is reused by all the tiles and frames.
+ * <p/>
+ * The wrapped engine isn't destroyed with this engine.
+ */
+public class TiledBlurEngine implements BlurEngine {
+
+    private final BlurEngine mEngine;
+    private final int mTileSize;
+
+    private Bitmap mTileIn;
+    private Bitmap mTileOut;
+    private long mAllocatedBytes;
+    private final Canvas mCanvas = new Canvas();
+    private final Paint mPaint = new Paint();
+    private final Rect mSrc = new Rect();
+    private final Rect mDst = new Rect();
+    private final BlurTiles mTiles = new BlurTiles();
+
+    public TiledBlurEngine(BlurEngine engine, int tileSize) {
+        mEngine = engine;
+        mTileSize = tileSize;
+        // Copy the pixels as they are
+        mPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    @Override
+    public int getMaxRadius() {
+        return mEngine.getMaxRadius();
+    }
+
+    @Override
+    public int getReach(int radius) {
+        return mEngine.getReach(radius);
+    }
+
+    @Override
+    public void blur(Bitmap in, Bitmap out, int radius) {
+        final int reach = mEngine.getReach(radius);
+        if (!mTiles.reset(in.getWidth(), in.getHeight(), mTileSize, reach)) {
+            // Nothing to tile, or the tiles are too small for this radius
+            mEngine.blur(in, out, radius);
+            return;
+        }
+
+        final int tileWidth = mTiles.getTileWidth();
+        final int tileHeight = mTiles.getTileHeight();
+        ensureTiles(tileWidth, tileHeight, in.getConfig());
+        while (mTiles.next()) {
+            final int tileX = mTiles.getTileLeft();
+            final int tileY = mTiles.getTileTop();
+            mSrc.set(tileX, tileY, tileX + tileWidth, tileY + tileHeight);
+            mDst.set(0, 0, tileWidth, tileHeight);
+            copy(in, mSrc, mTileIn, mDst);
+
+            mEngine.blur(mTileIn, mTileOut, radius);
+
+            mDst.set(mTiles.getLeft(), mTiles.getTop(), mTiles.getRight(), mTiles.getBottom());
+            mSrc.set(mDst.left - tileX, mDst.top - tileY,
+                    mDst.right - tileX, mDst.bottom - tileY);
+            copy(mTileOut, mSrc, out, mDst);
+        }
+        mCanvas.setBitmap(null);
+    }
+
+    private void ensureTiles(int width, int height, Bitmap.Config config) {
+        if (mTileIn != null && mTileIn.getWidth() == width
+                && mTileIn.getHeight() == height && mTileIn.getConfig() == config) {
+            return;
+        }
+        recycleTiles();
+        mTileIn = Bitmap.createBitmap(width, height, config);
+        mTileOut = Bitmap.createBitmap(width, height, config);
+        mAllocatedBytes += 2L * mTileIn.getRowBytes() * height;
+    }
+
+    private void copy(Bitmap src, Rect srcRect, Bitmap dst, Rect dstRect) {
+        mCanvas.setBitmap(dst);
+        mCanvas.drawBitmap(src, srcRect, dstRect, mPaint);
+    }
+
+    private void recycleTiles() {
+        if (mTileIn != null) {
+            mEngine.release(mTileIn);
+            mTileIn.recycle();
+            mTileOut.recycle();
+            mTileIn = null;
+            mTileOut = null;
+        }
+    }
+
+    @Override
+    public void release(Bitmap in) {
+        // Bitmaps that fit in a tile are blurred by the wrapped engine directly
+        mEngine.release(in);
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        // The allocations of the wrapped engine are counted by the wrapped engine
+        return mAllocatedBytes;
+    }
+
+    @Override
+    public void destroy() {
+        recycleTiles();
+    }
+}
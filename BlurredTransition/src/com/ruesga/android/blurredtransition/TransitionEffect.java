@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.blurredtransition;
+
+import android.graphics.Bitmap;
+
+/**
+ * An effect applied to the bitmaps of a transition. The effect grows until the middle of
+ * the transition and then fades back, while the view switches (or cross-fades) from the
+ * source to the destination bitmap.
+ * <p/>
+ * The frames are rendered by the view in its worker thread, into buffers that the view
+ * owns and reuses, so an effect shouldn't allocate per frame.
+ */
+public interface TransitionEffect {
+    /**
+     * Returns a unique name of the effect. It's part of the key of the cached frames.
+     */
+    String getName();
+
+    /**
+     * Returns whether the frames of both bitmaps are cross-faded. Otherwise the view
+     * switches from one bitmap to the other at the middle of the transition.
+     */
+    boolean isCrossFade();
+
+    /**
+     * Renders a frame of the effect. Called from the worker thread.
+     *
+     * @param engine the blur engine of the view
+     * @param in the (downsampled) bitmap
+     * @param out the output bitmap, with the same size and config than the input one
+     * @param level the strength of the effect, between 1 and maxLevel. It's the blur
+     * radius in pixels of the (downsampled) bitmap
+     * @param maxLevel the level at the middle of the transition
+     */
+    void render(BlurEngine engine, Bitmap in, Bitmap out, int level, int maxLevel);
+}
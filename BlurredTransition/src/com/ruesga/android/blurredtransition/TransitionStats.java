@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.blurredtransition;
+
+import java.util.Arrays;
+
+/**
+ * The stats of a blurred transition, reported by
+ * {@link BlurredTransitionImageView.OnTransitionStatsListener} when the transition ends.
+ * Times are in milliseconds.
+ */
+public class TransitionStats {
+
+    private final int mRenderedFrames;
+    private final int mSkippedFrames;
+    private final float mMinBlurTime;
+    private final float mMedianBlurTime;
+    private final float mP99BlurTime;
+    private final int mKeyframes;
+    private final float mKeyframeTime;
+    private final long mAllocatedBytes;
+    private final long mWallTime;
+    private final long mDuration;
+
+    TransitionStats(long[] blurTimes, int renderedFrames, int skippedFrames,
+            int keyframes, long keyframeTime, long allocatedBytes, long wallTime,
+            long duration) {
+        mRenderedFrames = renderedFrames;
+        mSkippedFrames = skippedFrames;
+        mKeyframes = keyframes;
+        mKeyframeTime = toMillis(keyframeTime);
+        mAllocatedBytes = allocatedBytes;
+        mWallTime = wallTime;
+        mDuration = duration;
+
+        long[] times = Arrays.copyOf(blurTimes, renderedFrames);
+        Arrays.sort(times);
+        mMinBlurTime = toMillis(percentile(times, 0));
+        mMedianBlurTime = toMillis(percentile(times, 50));
+        mP99BlurTime = toMillis(percentile(times, 99));
+    }
+
+    // Nearest-rank percentile of the sorted times
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil((percentile / 100.0) * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static float toMillis(long nanos) {
+        return nanos / 1000000f;
+    }
+
+    /**
+     * Returns the number of frames blurred during the transition. The keyframes aren't
+     * included, neither in the blur times.
+     */
+    public int getRenderedFrames() {
+        return mRenderedFrames;
+    }
+
+    /**
+     * Returns the number of frames that weren't blurred because the blur radius
+     * didn't change since the last one.
+     */
+    public int getSkippedFrames() {
+        return mSkippedFrames;
+    }
+
+    public float getMinBlurTime() {
+        return mMinBlurTime;
+    }
+
+    public float getMedianBlurTime() {
+        return mMedianBlurTime;
+    }
+
+    public float getP99BlurTime() {
+        return mP99BlurTime;
+    }
+
+    /**
+     * Returns the number of keyframes rendered before the transition started.
+     */
+    public int getKeyframes() {
+        return mKeyframes;
+    }
+
+    /**
+     * Returns the total time spent blurring the keyframes.
+     */
+    public float getKeyframeTime() {
+        return mKeyframeTime;
+    }
+
+    /**
+     * Returns the bytes allocated by the transition: the bitmaps of the frames and the
+     * buffers of the blur engine (pixel buffers, RenderScript allocations).
+     */
+    public long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    /**
+     * Returns the time from the first frame to the end of the transition.
+     */
+    public long getWallTime() {
+        return mWallTime;
+    }
+
+    /**
+     * Returns the configured duration of the transition.
+     */
+    public long getDuration() {
+        return mDuration;
+    }
+
+    @Override
+    public String toString() {
+        return "TransitionStats [rendered=" + mRenderedFrames
+                + ", skipped=" + mSkippedFrames
+                + ", blur min/p50/p99=" + mMinBlurTime + "/" + mMedianBlurTime
+                        + "/" + mP99BlurTime + " ms"
+                + ", keyframes=" + mKeyframes + " in " + mKeyframeTime + " ms"
+                + ", allocated=" + mAllocatedBytes + " bytes"
+                + ", wall=" + mWallTime + "/" + mDuration + " ms]";
+    }
+}
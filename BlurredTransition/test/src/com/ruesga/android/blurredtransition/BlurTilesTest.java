@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.android.blurredtransition;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plain JVM tests of {@link BlurTiles}, the tiles of {@link TiledBlurEngine}.
+ */
+public class BlurTilesTest {
+
+    private static final int[][] SIZES = {{100, 70}, {257, 31}, {64, 200}, {129, 129}};
+    private static final int[] TILE_SIZES = {32, 48, 64, 100};
+
+    @Test
+    public void testTilesFillTheImageOnce() {
+        BlurTiles tiles = new BlurTiles();
+        for (int[] size : SIZES) {
+            for (int tileSize : TILE_SIZES) {
+                for (int reach = 0; reach < tileSize / 2; reach += 3) {
+                    if (!tiles.reset(size[0], size[1], tileSize, reach)) {
+                        continue;
+                    }
+                    String what = size[0] + "x" + size[1] + ", tile " + tileSize
+                            + ", reach " + reach;
+                    int[] filled = new int[size[0] * size[1]];
+                    while (tiles.next()) {
+                        assertInside(what, tiles, size[0], size[1], reach);
+                        for (int y = tiles.getTop(); y < tiles.getBottom(); y++) {
+                            for (int x = tiles.getLeft(); x < tiles.getRight(); x++) {
+                                filled[y * size[0] + x]++;
+                            }
+                        }
+                    }
+                    for (int count : filled) {
+                        assertEquals(what, 1, count);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSmallImagesAreNotTiled() {
+        BlurTiles tiles = new BlurTiles();
+        assertFalse(tiles.reset(64, 64, 64, 5));
+        assertFalse(tiles.reset(30, 20, 64, 5));
+        // The tiles are too small for the reach
+        assertFalse(tiles.reset(200, 200, 32, 16));
+        assertTrue(tiles.reset(200, 200, 32, 15));
+    }
+
+    @Test
+    public void testTiledBlurEqualsFullBlur() {
+        GaussianBoxBlur blur = new GaussianBoxBlur();
+        BlurTiles tiles = new BlurTiles();
+        int tiled = 0;
+        for (int[] size : SIZES) {
+            final int width = size[0];
+            final int height = size[1];
+            for (int tileSize : TILE_SIZES) {
+                for (int radius = 1; radius <= 25; radius += 3) {
+                    if (!tiles.reset(width, height, tileSize, blur.getReach(radius))) {
+                        continue;
+                    }
+                    tiled++;
+                    int[] pixels = random(width, height, radius);
+                    int[] full = pixels.clone();
+                    blur.blur(full, new int[full.length], width, height, radius);
+
+                    int[] out = new int[pixels.length];
+                    int tileWidth = tiles.getTileWidth();
+                    int tileHeight = tiles.getTileHeight();
+                    int[] tile = new int[tileWidth * tileHeight];
+                    int[] scratch = new int[tile.length];
+                    while (tiles.next()) {
+                        copy(pixels, width, tiles.getTileLeft(), tiles.getTileTop(),
+                                tile, tileWidth, 0, 0, tileWidth, tileHeight);
+                        blur.blur(tile, scratch, tileWidth, tileHeight, radius);
+                        copy(tile, tileWidth, tiles.getLeft() - tiles.getTileLeft(),
+                                tiles.getTop() - tiles.getTileTop(),
+                                out, width, tiles.getLeft(), tiles.getTop(),
+                                tiles.getRight() - tiles.getLeft(),
+                                tiles.getBottom() - tiles.getTop());
+                    }
+                    assertArrayEquals(width + "x" + height + ", tile " + tileSize
+                            + ", radius " + radius, full, out);
+                }
+            }
+        }
+        assertTrue(tiled > 0);
+    }
+
+    private static void assertInside(String what, BlurTiles tiles,
+            int width, int height, int reach) {
+        int tileLeft = tiles.getTileLeft();
+        int tileTop = tiles.getTileTop();
+        int tileRight = tileLeft + tiles.getTileWidth();
+        int tileBottom = tileTop + tiles.getTileHeight();
+        assertTrue(what, tileLeft >= 0 && tileTop >= 0
+                && tileRight <= width && tileBottom <= height);
+        // The filled area is farther than the reach from the inner tile edges
+        assertTrue(what, tileLeft == 0 || tiles.getLeft() - tileLeft >= reach);
+        assertTrue(what, tileTop == 0 || tiles.getTop() - tileTop >= reach);
+        assertTrue(what, tileRight == width || tileRight - tiles.getRight() >= reach);
+        assertTrue(what, tileBottom == height || tileBottom - tiles.getBottom() >= reach);
+    }
+
+    private static void copy(int[] src, int srcWidth, int srcX, int srcY,
+            int[] dst, int dstWidth, int dstX, int dstY, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(src, (srcY + y) * srcWidth + srcX,
+                    dst, (dstY + y) * dstWidth + dstX, width);
+        }
+    }
+
+    private static int[] random(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2014 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.blurredtransition;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plain JVM tests of {@link GaussianBoxBlur}.
+ */
+public class GaussianBoxBlurTest {
+
+    private static final int MAX_RADIUS = 25;
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void testConstantImageIsUnchanged() {
+        GaussianBoxBlur blur = new GaussianBoxBlur();
+        for (int radius = 1; radius <= MAX_RADIUS; radius++) {
+            int[] pixels = fill(37, 23, 0xff336699);
+            blur.blur(pixels, new int[pixels.length], 37, 23, radius);
+            assertArrayEquals("radius " + radius, fill(37, 23, 0xff336699), pixels);
+        }
+    }
+
+    @Test
+    public void testSinglePixel() {
+        int[] pixels = {0x80402010};
+        new GaussianBoxBlur().blur(pixels, new int[1], 1, 1, MAX_RADIUS);
+        assertEquals(0x80402010, pixels[0]);
+    }
+
+    @Test
+    public void testSingleRowAndColumn() {
+        // A 1xN image is blurred as the transposed Nx1 image
+        GaussianBoxBlur blur = new GaussianBoxBlur();
+        for (int radius = 1; radius <= MAX_RADIUS; radius += 4) {
+            int[] row = random(57, 1, radius);
+            int[] column = row.clone();
+            blur.blur(row, new int[row.length], 57, 1, radius);
+            blur.blur(column, new int[column.length], 1, 57, radius);
+            assertArrayEquals("radius " + radius, row, column);
+        }
+    }
+
+    @Test
+    public void testEdgeSizesKeepConstantImages() {
+        GaussianBoxBlur blur = new GaussianBoxBlur(mExecutor, 4);
+        int[][] sizes = {{1, 1}, {1, 2}, {2, 1}, {1, 100}, {100, 1}, {3, 2}};
+        for (int[] size : sizes) {
+            int count = size[0] * size[1];
+            int[] pixels = fill(size[0], size[1], 0xfff0a050);
+            blur.blur(pixels, new int[count], size[0], size[1], MAX_RADIUS);
+            assertArrayEquals(size[0] + "x" + size[1], fill(size[0], size[1], 0xfff0a050),
+                    pixels);
+        }
+    }
+
+    @Test
+    public void testParallelEqualsSerial() {
+        // Includes images with less rows or columns than stripes
+        int[][] sizes = {{101, 67}, {67, 101}, {3, 40}, {40, 3}, {1, 9}};
+        GaussianBoxBlur serial = new GaussianBoxBlur();
+        for (int parallelism = 2; parallelism <= 8; parallelism *= 2) {
+            GaussianBoxBlur parallel = new GaussianBoxBlur(mExecutor, parallelism);
+            for (int[] size : sizes) {
+                for (int radius = 1; radius <= MAX_RADIUS; radius += 6) {
+                    int[] expected = random(size[0], size[1], radius);
+                    int[] actual = expected.clone();
+                    int count = expected.length;
+                    serial.blur(expected, new int[count], size[0], size[1], radius);
+                    parallel.blur(actual, new int[count], size[0], size[1], radius);
+                    assertArrayEquals(size[0] + "x" + size[1] + " radius " + radius
+                            + " parallelism " + parallelism, expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testApproximatesGaussian() {
+        GaussianBoxBlur blur = new GaussianBoxBlur();
+        for (int radius = 1; radius <= MAX_RADIUS; radius += 3) {
+            int[] pixels = smooth(96, 64);
+            int[] reference = pixels.clone();
+            blur.blur(pixels, new int[pixels.length], 96, 64, radius);
+            gaussianBlur(reference, new int[reference.length], 96, 64,
+                    GaussianBoxBlur.radiusToSigma(radius));
+            double psnr = psnr(pixels, reference);
+            assertTrue("radius " + radius + " psnr " + psnr, psnr > 35);
+        }
+    }
+
+    @Test
+    public void testTransparentPixelsDontBleed() {
+        // Transparent red on the left, opaque blue on the right
+        int width = 40;
+        int height = 10;
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (i % width) < width / 2 ? 0x00ff0000 : 0xff0000ff;
+        }
+
+        GaussianBoxBlur.premultiply(pixels, pixels.length);
+        new GaussianBoxBlur().blur(pixels, new int[pixels.length], width, height, 10);
+        GaussianBoxBlur.unpremultiply(pixels, pixels.length);
+
+        for (int i = 0; i < pixels.length; i++) {
+            int p = pixels[i];
+            assertEquals("red at " + i, 0, (p >> 16) & 0xff);
+            if ((p >>> 24) != 0) {
+                assertEquals("blue at " + i, 0xff, p & 0xff);
+            }
+        }
+    }
+
+    @Test
+    public void testPremultiplyRoundTrip() {
+        int[] pixels = {0xff123456, 0x00ffffff, 0x80ff8000};
+        GaussianBoxBlur.premultiply(pixels, pixels.length);
+        GaussianBoxBlur.unpremultiply(pixels, pixels.length);
+        assertArrayEquals(new int[]{0xff123456, 0x00000000, 0x80ff8000}, pixels);
+
+        // Translucent colors lose at most one level
+        int[] colors = new int[256 * 128];
+        for (int i = 0; i < colors.length; i++) {
+            int alpha = 128 + i / 256;
+            colors[i] = (alpha << 24) | ((i % 256) << 8);
+        }
+        int[] roundTrip = colors.clone();
+        GaussianBoxBlur.premultiply(roundTrip, roundTrip.length);
+        GaussianBoxBlur.unpremultiply(roundTrip, roundTrip.length);
+        for (int i = 0; i < colors.length; i++) {
+            int error = Math.abs(((roundTrip[i] >> 8) & 0xff) - ((colors[i] >> 8) & 0xff));
+            assertTrue(Integer.toHexString(colors[i]), error <= 1);
+        }
+    }
+
+    private static int[] fill(int width, int height, int color) {
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = color;
+        }
+        return pixels;
+    }
+
+    private static int[] random(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+
+    // An opaque image with soft gradients and some hard edges, like a photo
+    private static int[] smooth(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255) / width;
+                int g = (y * 255) / height;
+                int b = ((x / 16 + y / 16) % 2) * 160 + 40;
+                pixels[y * width + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    // A separable gaussian blur with a kernel of 3 sigmas and clamped edges
+    private static void gaussianBlur(int[] pixels, int[] scratch, int width, int height,
+            float sigma) {
+        final int radius = (int) Math.ceil(sigma * 3);
+        float[] kernel = new float[2 * radius + 1];
+        float sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            kernel[i + radius] = (float) Math.exp(-(i * i) / (2.0 * sigma * sigma));
+            sum += kernel[i + radius];
+        }
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] /= sum;
+        }
+        convolve(pixels, scratch, width, height, kernel, 1, width);
+        convolve(scratch, pixels, height, width, kernel, width, 1);
+    }
+
+    // Convolves the lines of src into dst. Pixels of a line are step apart and
+    // lines are stride apart
+    private static void convolve(int[] src, int[] dst, int length, int lines,
+            float[] kernel, int step, int stride) {
+        final int radius = kernel.length / 2;
+        for (int line = 0; line < lines; line++) {
+            final int offset = line * stride;
+            for (int i = 0; i < length; i++) {
+                float a = 0, r = 0, g = 0, b = 0;
+                for (int k = -radius; k <= radius; k++) {
+                    int p = src[offset + Math.min(Math.max(i + k, 0), length - 1) * step];
+                    float w = kernel[k + radius];
+                    a += (p >>> 24) * w;
+                    r += ((p >> 16) & 0xff) * w;
+                    g += ((p >> 8) & 0xff) * w;
+                    b += (p & 0xff) * w;
+                }
+                dst[offset + i * step] = (clamp(a) << 24) | (clamp(r) << 16)
+                        | (clamp(g) << 8) | clamp(b);
+            }
+        }
+    }
+
+    private static int clamp(float value) {
+        return Math.min(255, Math.max(0, Math.round(value)));
+    }
+
+    // The PSNR of the color channels
+    private static double psnr(int[] pixels, int[] reference) {
+        double error = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                int d = ((pixels[i] >> shift) & 0xff) - ((reference[i] >> shift) & 0xff);
+                error += d * d;
+            }
+        }
+        double mse = error / (pixels.length * 3.0);
+        return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10((255 * 255) / mse);
+    }
+}
@@ -25,7 +25,9 @@ import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -38,12 +40,15 @@ import org.json.JSONArray;
 import org.json.JSONException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 public class MultiProcessSharedPreferencesProvider extends ContentProvider {
 
@@ -53,11 +58,13 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
 
     private static final String PREFERENCES_ENTITY = "preferences";
     private static final String PREFERENCE_ENTITY = "preference";
+    private static final String PREFIX_ENTITY = "prefix";
 
     private static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
 
     private static final int PREFERENCES_DATA = 1;
     private static final int PREFERENCES_DATA_ID = 2;
+    private static final int PREFERENCES_DATA_PREFIX = 3;
 
     private static final UriMatcher sURLMatcher = new UriMatcher(UriMatcher.NO_MATCH);
     static {
@@ -69,8 +76,14 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
                 AUTHORITY,
                 PREFERENCES_ENTITY + "/*/" + PREFERENCE_ENTITY + "/*",
                 PREFERENCES_DATA_ID);
+        sURLMatcher.addURI(
+                AUTHORITY,
+                PREFERENCES_ENTITY + "/*/" + PREFIX_ENTITY + "/*",
+                PREFERENCES_DATA_PREFIX);
     }
 
+    private static final String METHOD_BATCH_READ = "batchRead";
+
     private static final String FIELD_KEY = "key";
     private static final String FIELD_VALUE = "value";
 
@@ -79,8 +92,111 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
         FIELD_VALUE
     };
 
+    private static final String METHOD_SNAPSHOT = "snapshot";
+    private static final String EXTRA_VALUES = "values";
+    private static final String EXTRA_VERSION = "version";
+
+    private static final String PARAM_DURABILITY = "durability";
+
+    private static final String METHOD_COMMIT = "commit";
+    private static final String EXTRA_CLEAR = "clear";
+    private static final String EXTRA_REMOVED = "removed";
+
+    /**
+     * How much a write must be persisted before returning to the caller.
+     */
+    public enum Durability {
+        /** The value is only kept in the provider memory. Lost if its process dies. */
+        MEMORY,
+        /** The value is persisted to disk asynchronously. */
+        ASYNC,
+        /** Returns once the value is written to disk. */
+        DURABLE
+    }
+
+    private static final String METHOD_SET_NOTIFICATION_POLICY = "setNotificationPolicy";
+    private static final String EXTRA_PREFIX = "prefix";
+    private static final String EXTRA_POLICY = "policy";
+    private static final String EXTRA_WINDOW = "window";
+    private static final String PARAM_KEYS = "keys";
+    private static final String PARAM_VERSION = "version";
+
+    /**
+     * How the changes of a preferences file (or of the keys with a prefix) are notified.
+     */
+    public enum NotificationPolicy {
+        /** Every change is notified. */
+        IMMEDIATE,
+        /** All the changes within a time window are notified at once. */
+        COALESCE,
+        /** Changes are not notified. */
+        SUPPRESS
+    }
+
+    // A notification policy applied to the keys of a preferences file that start
+    // with a prefix (an empty prefix matches the whole file)
+    private class NotificationRule implements Runnable {
+        private final String mName;
+        private final String mPrefix;
+        private final NotificationPolicy mPolicy;
+        private final long mWindow;
+
+        private final Set<String> mPendingKeys = new HashSet<>();
+        private boolean mPendingAll;
+        private boolean mScheduled;
+
+        private NotificationRule(String name, String prefix,
+                NotificationPolicy policy, long window) {
+            mName = name;
+            mPrefix = prefix;
+            mPolicy = policy;
+            mWindow = window;
+        }
+
+        private boolean matches(String key) {
+            return key != null ? key.startsWith(mPrefix) : mPrefix.isEmpty();
+        }
+
+        @Override
+        public void run() {
+            Set<String> keys;
+            synchronized (mNotificationRules) {
+                keys = mPendingAll ? null : new HashSet<>(mPendingKeys);
+                mPendingKeys.clear();
+                mPendingAll = false;
+                mScheduled = false;
+            }
+            dispatchChange(mName, keys);
+        }
+    }
+
+    // A sorted mirror of a preferences file, used to answer queries without having to
+    // walk (and copy) the whole backing store. Every access must be done holding the
+    // index lock. The version is increased on every write.
+    //
+    // Writes to the backing store are staged in a pending editor. Durable writes are
+    // group committed: the first writer that finds no commit in progress commits
+    // everything staged so far, so concurrent durable writes share a single fsync.
+    private static class PreferencesIndex {
+        private final TreeMap<String, Object> mValues;
+        private long mVersion;
+
+        private SharedPreferences.Editor mPendingEditor;
+        private long mStagedGeneration;
+        private long mDurableGeneration;
+        private long mCommittedGeneration;
+        private boolean mCommitting;
+
+        private PreferencesIndex(Map<String, ?> values) {
+            mValues = new TreeMap<>(values);
+        }
+    }
+
     private Context mContext;
     private Map<String, SharedPreferences> mPreferences = new HashMap<>();
+    private final Map<String, PreferencesIndex> mIndexes = new HashMap<>();
+    private final Map<String, List<NotificationRule>> mNotificationRules = new HashMap<>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
 
     @Override
     @SuppressWarnings("ConstantConditions")
@@ -89,20 +205,158 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
         return false;
     }
 
-    private synchronized SharedPreferences getSharedPreferences(Uri uri) {
-        String name = decodePath(uri.getPathSegments().get(1));
+    private SharedPreferences getSharedPreferences(Uri uri) {
+        return getSharedPreferences(decodePath(uri.getPathSegments().get(1)));
+    }
+
+    private synchronized SharedPreferences getSharedPreferences(String name) {
         if (!mPreferences.containsKey(name)) {
             mPreferences.put(name, mContext.getSharedPreferences(name, Context.MODE_PRIVATE));
         }
         return mPreferences.get(name);
     }
 
+    private PreferencesIndex getIndex(Uri uri) {
+        return getIndex(decodePath(uri.getPathSegments().get(1)));
+    }
+
+    private synchronized PreferencesIndex getIndex(String name) {
+        PreferencesIndex index = mIndexes.get(name);
+        if (index == null) {
+            index = new PreferencesIndex(getSharedPreferences(name).getAll());
+            mIndexes.put(name, index);
+        }
+        return index;
+    }
+
+    /**
+     * Writes a value (a null key clears the whole file and a null value removes the key)
+     * with the passed durability.
+     */
+    private void write(Uri uri, String key, Object value, Durability durability) {
+        String name = decodePath(uri.getPathSegments().get(1));
+        if (key == null) {
+            write(name, true, Collections.<String, Object>emptyMap(), durability);
+        } else {
+            write(name, false, Collections.singletonMap(key, value), durability);
+        }
+    }
+
+    /**
+     * Writes a batch of changes (an optional clear followed by the values, where a null
+     * value removes the key) with the passed durability. The whole batch is applied under
+     * the index lock with a single version bump, so readers see all of it or none of it.
+     */
+    private void write(String name, boolean clear, Map<String, Object> values,
+            Durability durability) {
+        PreferencesIndex index = getIndex(name);
+        long generation;
+        synchronized (index) {
+            if (clear) {
+                index.mValues.clear();
+            }
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                if (entry.getValue() == null) {
+                    index.mValues.remove(entry.getKey());
+                } else {
+                    index.mValues.put(entry.getKey(), entry.getValue());
+                }
+            }
+            index.mVersion++;
+            if (durability == Durability.MEMORY) {
+                return;
+            }
+
+            // Stage the changes. Editors always apply a clear before any other change,
+            // so a clear discards whatever was staged before
+            if (clear) {
+                index.mPendingEditor = getSharedPreferences(name).edit().clear();
+            } else if (index.mPendingEditor == null) {
+                index.mPendingEditor = getSharedPreferences(name).edit();
+            }
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                putValue(index.mPendingEditor, entry.getKey(), entry.getValue());
+            }
+            generation = ++index.mStagedGeneration;
+
+            if (durability == Durability.ASYNC) {
+                // Don't overtake a pending group commit. The staged change will be
+                // written along with it
+                if (!index.mCommitting && index.mDurableGeneration <= index.mCommittedGeneration) {
+                    index.mPendingEditor.apply();
+                    index.mPendingEditor = null;
+                }
+                return;
+            }
+            index.mDurableGeneration = generation;
+        }
+
+        groupCommit(index, generation);
+    }
+
+    private static void groupCommit(PreferencesIndex index, long generation) {
+        while (true) {
+            SharedPreferences.Editor editor;
+            long target;
+            synchronized (index) {
+                while (index.mCommitting && index.mCommittedGeneration < generation) {
+                    try {
+                        index.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (index.mCommittedGeneration >= generation || index.mPendingEditor == null) {
+                    return;
+                }
+
+                // Lead the commit of everything staged so far
+                editor = index.mPendingEditor;
+                index.mPendingEditor = null;
+                target = index.mStagedGeneration;
+                index.mCommitting = true;
+            }
+
+            try {
+                if (!editor.commit()) {
+                    Log.w(TAG, "Failed to commit preferences to disk");
+                }
+            } finally {
+                synchronized (index) {
+                    index.mCommitting = false;
+                    index.mCommittedGeneration = target;
+                    if (index.mPendingEditor != null
+                            && index.mDurableGeneration <= index.mCommittedGeneration) {
+                        // Only asynchronous writes were staged meanwhile
+                        index.mPendingEditor.apply();
+                        index.mPendingEditor = null;
+                    }
+                    index.notifyAll();
+                }
+            }
+        }
+    }
+
+    private static Durability getDurability(Uri uri) {
+        String durability = uri.getQueryParameter(PARAM_DURABILITY);
+        if (durability != null) {
+            try {
+                return Durability.valueOf(durability);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown durability: " + durability);
+            }
+        }
+        return Durability.ASYNC;
+    }
+
     @Nullable
     @Override
     public String getType(@NonNull Uri uri) {
         int match = sURLMatcher.match(uri);
         switch (match) {
             case PREFERENCES_DATA:
+            case PREFERENCES_DATA_PREFIX:
                 return "vnd.android.cursor.dir/" + PREFERENCES_ENTITY;
             default:
                 return "vnd.android.cursor.item/" + PREFERENCES_ENTITY;
@@ -119,32 +373,39 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
         int match = sURLMatcher.match(uri);
         switch (match) {
             case PREFERENCES_DATA:
-                Map<String, ?> map = getSharedPreferences(uri).getAll();
+                PreferencesIndex index = getIndex(uri);
                 c = new MatrixCursor(PROJECTION);
-                for (String key : map.keySet()) {
-                    MatrixCursor.RowBuilder row = c.newRow();
-                    row.add(key);
-                    Object val = map.get(key);
-                    if (val instanceof Set<?>) {
-                        row.add(marshallSet((Set<String>) val));
-                    } else {
-                        row.add(val);
+                synchronized (index) {
+                    for (Map.Entry<String, Object> entry : index.mValues.entrySet()) {
+                        addRow(c, entry.getKey(), entry.getValue());
                     }
                 }
                 break;
 
             case PREFERENCES_DATA_ID:
                 final String key = decodePath(uri.getPathSegments().get(3));
-                map = getSharedPreferences(uri).getAll();
-                if (map.containsKey(key)) {
-                    c = new MatrixCursor(PROJECTION);
-                    MatrixCursor.RowBuilder row = c.newRow();
-                    row.add(key);
-                    Object val = map.get(key);
-                    if (val instanceof Set<?>) {
-                        row.add(marshallSet((Set<String>) val));
-                    } else {
-                        row.add(val);
+                index = getIndex(uri);
+                synchronized (index) {
+                    if (index.mValues.containsKey(key)) {
+                        c = new MatrixCursor(PROJECTION);
+                        addRow(c, key, index.mValues.get(key));
+                    }
+                }
+                break;
+
+            case PREFERENCES_DATA_PREFIX:
+                // O(log n + matches): seek to the first key >= prefix and stop at
+                // the first one that doesn't share it
+                final String prefix = decodePath(uri.getPathSegments().get(3));
+                index = getIndex(uri);
+                c = new MatrixCursor(PROJECTION);
+                synchronized (index) {
+                    for (Map.Entry<String, Object> entry
+                            : index.mValues.tailMap(prefix, true).entrySet()) {
+                        if (!entry.getKey().startsWith(prefix)) {
+                            break;
+                        }
+                        addRow(c, entry.getKey(), entry.getValue());
                     }
                 }
                 break;
@@ -156,6 +417,78 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
         return c;
     }
 
+    @SuppressWarnings("unchecked")
+    private static void addRow(MatrixCursor c, String key, Object val) {
+        MatrixCursor.RowBuilder row = c.newRow();
+        row.add(key);
+        if (val instanceof Set<?>) {
+            row.add(marshallSet((Set<String>) val));
+        } else {
+            row.add(val);
+        }
+    }
+
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        if (METHOD_BATCH_READ.equals(method)) {
+            // Every entry of the request is a preferences file name mapped to the keys
+            // to read (or null to read the whole file)
+            Bundle result = new Bundle();
+            if (extras != null) {
+                for (String name : extras.keySet()) {
+                    PreferencesIndex index = getIndex(name);
+                    String[] keys = extras.getStringArray(name);
+                    synchronized (index) {
+                        result.putBundle(name, toBundle(index.mValues, keys));
+                    }
+                }
+            }
+            return result;
+
+        } else if (METHOD_SNAPSHOT.equals(method)) {
+            // Values and version are read under the same lock, so the snapshot can't
+            // see a partial write
+            Bundle result = new Bundle();
+            PreferencesIndex index = getIndex(arg);
+            String[] keys = extras != null ? extras.getStringArray(FIELD_KEY) : null;
+            synchronized (index) {
+                result.putBundle(EXTRA_VALUES, toBundle(index.mValues, keys));
+                result.putLong(EXTRA_VERSION, index.mVersion);
+            }
+            return result;
+
+        } else if (METHOD_COMMIT.equals(method) && extras != null) {
+            // All the changes of an editor, applied at once
+            boolean clear = extras.getBoolean(EXTRA_CLEAR);
+            Map<String, Object> values = fromBundle(extras.getBundle(EXTRA_VALUES));
+            String[] removed = extras.getStringArray(EXTRA_REMOVED);
+            if (removed != null) {
+                for (String key : removed) {
+                    values.put(key, null);
+                }
+            }
+            Durability durability = Durability.valueOf(extras.getString(PARAM_DURABILITY));
+            write(arg, clear, values, durability);
+
+            if (clear) {
+                notifyChange(resolveUri(null, arg));
+            }
+            for (String key : values.keySet()) {
+                notifyChange(resolveUri(key, arg));
+            }
+            return new Bundle();
+
+        } else if (METHOD_SET_NOTIFICATION_POLICY.equals(method) && extras != null) {
+            setNotificationRule(new NotificationRule(arg,
+                    extras.getString(EXTRA_PREFIX, ""),
+                    NotificationPolicy.valueOf(extras.getString(EXTRA_POLICY)),
+                    extras.getLong(EXTRA_WINDOW)));
+            return null;
+        }
+        return super.call(method, arg, extras);
+    }
+
     @Nullable
     @Override
     public Uri insert(@NonNull Uri uri, ContentValues values) {
@@ -165,30 +498,8 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
         int count = 0;
         switch (match) {
             case PREFERENCES_DATA:
-                SharedPreferences.Editor editor = getSharedPreferences(uri).edit();
                 key = (String) values.get(FIELD_KEY);
-                Object value = values.get(FIELD_VALUE);
-                if (value != null) {
-                    if (value instanceof Boolean) {
-                        editor.putBoolean(key, (Boolean) value);
-                    } else if (value instanceof Long) {
-                        editor.putLong(key, (Long) value);
-                    } else if (value instanceof Integer) {
-                        editor.putInt(key, (Integer) value);
-                    } else if (value instanceof Float) {
-                        editor.putFloat(key, (Float) value);
-                    } else {
-                        // Test if the preference is a json array
-                        try {
-                            editor.putStringSet(key, unmarshallSet((String) value));
-                        } catch (JSONException e) {
-                            editor.putString(key, (String) value);
-                        }
-                    }
-                } else {
-                    editor.remove(key);
-                }
-                editor.apply();
+                write(uri, key, unmarshallValue(values.get(FIELD_VALUE)), getDurability(uri));
                 count = 1;
                 break;
             default:
@@ -198,7 +509,7 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
 
         // Notify
         if (count > 0) {
-            Uri notifyUri = uri.buildUpon().appendPath(encodePath(key)).build();
+            Uri notifyUri = uri.buildUpon().clearQuery().appendPath(encodePath(key)).build();
             notifyChange(notifyUri);
             return notifyUri;
         }
@@ -210,13 +521,21 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
         int count = 0;
         switch (sURLMatcher.match(uri)) {
             case PREFERENCES_DATA:
-                count = getSharedPreferences(uri).getAll().size();
-                getSharedPreferences(uri).edit().clear().apply();
+                PreferencesIndex index = getIndex(uri);
+                synchronized (index) {
+                    count = index.mValues.size();
+                }
+                write(uri, null, null, getDurability(uri));
                 break;
             case PREFERENCES_DATA_ID:
                 final String key = decodePath(uri.getPathSegments().get(3));
-                if (getSharedPreferences(uri).contains(key)) {
-                    getSharedPreferences(uri).edit().remove(key).apply();
+                index = getIndex(uri);
+                boolean exists;
+                synchronized (index) {
+                    exists = index.mValues.containsKey(key);
+                }
+                if (exists) {
+                    write(uri, key, null, getDurability(uri));
                     count = 0;
                 }
                 break;
@@ -238,31 +557,9 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
         int match = sURLMatcher.match(uri);
         switch (match) {
             case PREFERENCES_DATA_ID:
-                SharedPreferences.Editor editor = getSharedPreferences(uri).edit();
                 final String key = decodePath(uri.getPathSegments().get(3));
-                Object value = values.get(FIELD_VALUE);
-                if (value != null) {
-                    if (value instanceof Boolean) {
-                        editor.putBoolean(key, (Boolean) value);
-                    } else if (value instanceof Long) {
-                        editor.putLong(key, (Long) value);
-                    } else if (value instanceof Integer) {
-                        editor.putInt(key, (Integer) value);
-                    } else if (value instanceof Float) {
-                        editor.putFloat(key, (Float) value);
-                    } else {
-                        // Test if the preference is a json array
-                        try {
-                            editor.putStringSet(key, unmarshallSet((String) value));
-                        } catch (JSONException e) {
-                            editor.putString(key, (String) value);
-                        }
-                    }
-                } else {
-                    editor.remove(key);
-                }
+                write(uri, key, unmarshallValue(values.get(FIELD_VALUE)), getDurability(uri));
                 count = 1;
-                editor.apply();
                 break;
             default:
                 Log.w(TAG, "Cannot update URI: " + uri);
@@ -275,8 +572,124 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
         return count;
     }
 
+    private static Object unmarshallValue(Object value) {
+        if (value instanceof String) {
+            // Test if the preference is a json array
+            try {
+                return unmarshallSet((String) value);
+            } catch (JSONException e) {
+                // Ignore
+            }
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void putValue(SharedPreferences.Editor editor, String key, Object value) {
+        if (value == null) {
+            editor.remove(key);
+        } else if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long) value);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer) value);
+        } else if (value instanceof Float) {
+            editor.putFloat(key, (Float) value);
+        } else if (value instanceof Set<?>) {
+            editor.putStringSet(key, (Set<String>) value);
+        } else {
+            editor.putString(key, (String) value);
+        }
+    }
+
+    private void setNotificationRule(NotificationRule rule) {
+        NotificationRule replaced = null;
+        synchronized (mNotificationRules) {
+            List<NotificationRule> rules = mNotificationRules.get(rule.mName);
+            if (rules == null) {
+                rules = new ArrayList<>();
+                mNotificationRules.put(rule.mName, rules);
+            }
+            Iterator<NotificationRule> it = rules.iterator();
+            while (it.hasNext()) {
+                NotificationRule r = it.next();
+                if (r.mPrefix.equals(rule.mPrefix)) {
+                    it.remove();
+                    if (r.mScheduled) {
+                        mHandler.removeCallbacks(r);
+                        replaced = r;
+                    }
+                }
+            }
+            rules.add(rule);
+        }
+
+        // Don't lose the changes pending of the replaced rule
+        if (replaced != null) {
+            replaced.run();
+        }
+    }
+
     private void notifyChange(Uri uri) {
-        mContext.getContentResolver().notifyChange(uri, null);
+        List<String> segments = uri.getPathSegments();
+        String name = decodePath(segments.get(1));
+        String key = segments.size() > 3 ? decodePath(segments.get(3)) : null;
+
+        synchronized (mNotificationRules) {
+            // The rule with the longest matching prefix wins
+            NotificationRule rule = null;
+            List<NotificationRule> rules = mNotificationRules.get(name);
+            if (rules != null) {
+                for (NotificationRule r : rules) {
+                    if (r.matches(key) && (rule == null
+                            || r.mPrefix.length() > rule.mPrefix.length())) {
+                        rule = r;
+                    }
+                }
+            }
+
+            if (rule != null && rule.mPolicy == NotificationPolicy.SUPPRESS) {
+                return;
+            }
+            if (rule != null && rule.mPolicy == NotificationPolicy.COALESCE) {
+                if (key == null) {
+                    rule.mPendingAll = true;
+                } else {
+                    rule.mPendingKeys.add(key);
+                }
+                if (!rule.mScheduled) {
+                    rule.mScheduled = true;
+                    mHandler.postDelayed(rule, rule.mWindow);
+                }
+                return;
+            }
+        }
+
+        dispatchChange(name, key != null ? Collections.singleton(key) : null);
+    }
+
+    // Sends a notification for the changed keys (or for the whole file if null) stamped
+    // with the current version of the file
+    private void dispatchChange(String name, Set<String> keys) {
+        PreferencesIndex index = getIndex(name);
+        long version;
+        synchronized (index) {
+            version = index.mVersion;
+        }
+
+        Uri uri;
+        if (keys != null && keys.size() == 1) {
+            uri = resolveUri(keys.iterator().next(), name);
+        } else {
+            uri = resolveUri(null, name);
+        }
+        Uri.Builder builder = uri.buildUpon()
+                .appendQueryParameter(PARAM_VERSION, String.valueOf(version));
+        if (keys != null && keys.size() > 1) {
+            builder.appendQueryParameter(PARAM_KEYS, marshallSet(keys));
+        }
+        mContext.getContentResolver().notifyChange(builder.build(), null);
     }
 
     private static String marshallSet(Set<String> set) {
@@ -297,6 +710,90 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
         return set;
     }
 
+    @SuppressWarnings("unchecked")
+    private static Bundle toBundle(Map<String, Object> values, String[] keys) {
+        Bundle bundle = new Bundle();
+        Iterable<String> it = keys != null ? Arrays.asList(keys) : values.keySet();
+        for (String key : it) {
+            Object value = values.get(key);
+            if (value instanceof Boolean) {
+                bundle.putBoolean(key, (Boolean) value);
+            } else if (value instanceof Long) {
+                bundle.putLong(key, (Long) value);
+            } else if (value instanceof Integer) {
+                bundle.putInt(key, (Integer) value);
+            } else if (value instanceof Float) {
+                bundle.putFloat(key, (Float) value);
+            } else if (value instanceof String) {
+                bundle.putString(key, (String) value);
+            } else if (value instanceof Set<?>) {
+                bundle.putStringArrayList(key, new ArrayList<>((Set<String>) value));
+            } else if (value != null) {
+                // Missing keys are just left out, but a value is never silently lost
+                throw new IllegalArgumentException("Unsupported type for key " + key);
+            }
+        }
+        return bundle;
+    }
+
+    private static Map<String, Object> fromBundle(Bundle bundle) {
+        Map<String, Object> values = new HashMap<>();
+        if (bundle != null) {
+            for (String key : bundle.keySet()) {
+                Object value = bundle.get(key);
+                if (value instanceof ArrayList<?>) {
+                    value = new HashSet<>(bundle.getStringArrayList(key));
+                }
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Reads several preferences files in a single round trip to the provider.
+     *
+     * @param context the current context
+     * @param request the preferences file names mapped to the keys to read from each
+     *                of them, or to null to read the whole file
+     * @return the read values of every requested file, indexed by file name
+     */
+    public static Map<String, Map<String, ?>> batchRead(
+            Context context, Map<String, String[]> request) {
+        Bundle extras = new Bundle();
+        for (Map.Entry<String, String[]> entry : request.entrySet()) {
+            extras.putStringArray(entry.getKey(), entry.getValue());
+        }
+        Bundle result = context.getContentResolver().call(
+                CONTENT_URI, METHOD_BATCH_READ, null, extras);
+
+        Map<String, Map<String, ?>> values = new HashMap<>();
+        for (String name : request.keySet()) {
+            values.put(name, fromBundle(result != null ? result.getBundle(name) : null));
+        }
+        return values;
+    }
+
+    /**
+     * Sets how the changes of the keys of a preferences file that start with a prefix
+     * are notified to the listeners. The rule with the longest matching prefix is applied.
+     *
+     * @param context the current context
+     * @param name the preferences file name
+     * @param prefix the key prefix, or an empty string to apply to the whole file
+     * @param policy the notification policy
+     * @param window the time window (in milliseconds) used to coalesce notifications
+     */
+    public static void setNotificationPolicy(Context context, String name, String prefix,
+            NotificationPolicy policy, long window) {
+        Bundle extras = new Bundle();
+        extras.putString(EXTRA_PREFIX, prefix != null ? prefix : "");
+        extras.putString(EXTRA_POLICY, policy.name());
+        extras.putLong(EXTRA_WINDOW, window);
+        context.getContentResolver().call(
+                CONTENT_URI, METHOD_SET_NOTIFICATION_POLICY, name, extras);
+    }
+
     private static Map<String, MultiProcessSharedPreferences> sInstances = new HashMap<>();
 
     public static MultiProcessSharedPreferences getDefaultSharedPreferences(Context context) {
@@ -317,16 +814,78 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
         return sInstances.get(name);
     }
 
+    /**
+     * An immutable point-in-time view of a preferences file.
+     */
+    public static class Snapshot {
+        private final Map<String, Object> mValues;
+        private final long mVersion;
+
+        private Snapshot(Map<String, Object> values, long version) {
+            mValues = Collections.unmodifiableMap(values);
+            mVersion = version;
+        }
+
+        /**
+         * Returns the version of the preferences file when the snapshot was taken, or -1
+         * if the snapshot couldn't be read. Versions only grow while the provider is alive.
+         */
+        public long getVersion() {
+            return mVersion;
+        }
+
+        public Map<String, ?> getAll() {
+            return mValues;
+        }
+
+        public boolean contains(String key) {
+            return mValues.containsKey(key);
+        }
+
+        public String getString(String key, String defValue) {
+            Object value = mValues.get(key);
+            return value instanceof String ? (String) value : defValue;
+        }
+
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            Object value = mValues.get(key);
+            return value instanceof Set<?>
+                    ? Collections.unmodifiableSet((Set<String>) value) : defValues;
+        }
+
+        public int getInt(String key, int defValue) {
+            Object value = mValues.get(key);
+            return value instanceof Integer ? (Integer) value : defValue;
+        }
+
+        public long getLong(String key, long defValue) {
+            Object value = mValues.get(key);
+            return value instanceof Long ? (Long) value : defValue;
+        }
+
+        public float getFloat(String key, float defValue) {
+            Object value = mValues.get(key);
+            return value instanceof Float ? (Float) value : defValue;
+        }
+
+        public boolean getBoolean(String key, boolean defValue) {
+            Object value = mValues.get(key);
+            return value instanceof Boolean ? (Boolean) value : defValue;
+        }
+    }
+
     public static class MultiProcessSharedPreferences implements SharedPreferences {
         private final String mPreferencesFileName;
 
-        private static class MultiProcessEditor implements Editor {
+        public static class MultiProcessEditor implements Editor {
 
             private final Context mContext;
             private final String mPreferencesFileName;
             private final List<Pair<String, Object>> mValues;
             private final Set<String> mRemovedEntries;
             private boolean mClearAllFlag;
+            private Durability mDurability;
 
             private MultiProcessEditor(Context context, String name) {
                 mContext = context;
@@ -399,48 +958,53 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
                 return this;
             }
 
+            /**
+             * Sets the durability of the changes of this editor. By default, {@link #commit()}
+             * returns once the changes are on disk and {@link #apply()} persists them
+             * asynchronously.
+             */
+            public MultiProcessEditor setDurability(Durability durability) {
+                mDurability = durability;
+                return this;
+            }
+
             @Override
-            @SuppressWarnings("unchecked")
             public boolean commit() {
-                if (mClearAllFlag) {
-                    Uri uri = resolveUri(null, mPreferencesFileName);
-                    mContext.getContentResolver().delete(uri, null, null);
-                }
-                mClearAllFlag = false;
+                return commit(mDurability != null ? mDurability : Durability.DURABLE);
+            }
 
-                ContentValues values = new ContentValues();
+            @Override
+            public void apply() {
+                commit(mDurability != null ? mDurability : Durability.ASYNC);
+            }
+
+            private boolean commit(Durability durability) {
+                // The whole editor is sent in a single call, so the provider applies it
+                // atomically (readers never see a part of it) and persists it at once
+                Map<String, Object> values = new HashMap<>();
+                Set<String> removed = new HashSet<>();
                 for (Pair<String, Object> v : mValues) {
-                    Uri uri = resolveUri(v.first, mPreferencesFileName);
-                    values.put(FIELD_KEY, v.first);
-                    if (v.second instanceof Boolean) {
-                        values.put(FIELD_VALUE, (Boolean) v.second);
-                    } else if (v.second instanceof Long) {
-                        values.put(FIELD_VALUE, (Long) v.second);
-                    } else if (v.second instanceof Integer) {
-                        values.put(FIELD_VALUE, (Integer) v.second);
-                    } else if (v.second instanceof Float) {
-                        values.put(FIELD_VALUE, (Float) v.second);
-                    } else if (v.second instanceof String) {
-                        values.put(FIELD_VALUE, (String) v.second);
-                    } else if (v.second instanceof Set) {
-                        values.put(FIELD_VALUE, marshallSet((Set<String>) v.second));
+                    if (v.second == null) {
+                        values.remove(v.first);
+                        removed.add(v.first);
                     } else {
-                        throw new IllegalArgumentException("Unsupported type for key " + v.first);
+                        values.put(v.first, v.second);
+                        removed.remove(v.first);
                     }
-
-                    mContext.getContentResolver().update(uri, values, null, null);
                 }
+                values.keySet().removeAll(mRemovedEntries);
+                removed.addAll(mRemovedEntries);
+
+                Bundle extras = new Bundle();
+                extras.putBoolean(EXTRA_CLEAR, mClearAllFlag);
+                extras.putBundle(EXTRA_VALUES, toBundle(values, null));
+                extras.putStringArray(EXTRA_REMOVED, removed.toArray(new String[removed.size()]));
+                extras.putString(PARAM_DURABILITY, durability.name());
+                mClearAllFlag = false;
 
-                for (String key : mRemovedEntries) {
-                    Uri uri = resolveUri(key, mPreferencesFileName);
-                    mContext.getContentResolver().delete(uri, null, null);
-                }
-                return true;
-            }
-
-            @Override
-            public void apply() {
-                commit();
+                Bundle result = mContext.getContentResolver().call(
+                        CONTENT_URI, METHOD_COMMIT, mPreferencesFileName, extras);
+                return result != null;
             }
         }
 
@@ -452,17 +1016,41 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
 
             @Override
             public void onChange(boolean selfChange, Uri uri) {
-                String name = decodePath(uri.getPathSegments().get(1));
+                List<String> segments = uri.getPathSegments();
+                String name = decodePath(segments.get(1));
                 if (name.equals(mPreferencesFileName)) {
-                    String key = decodePath(uri.getLastPathSegment());
-                    for (OnSharedPreferenceChangeListener cb : mListeners) {
-                        cb.onSharedPreferenceChanged(MultiProcessSharedPreferences.this, key);
+                    // A coalesced notification carries all the changed keys, while a
+                    // notification without keys means that the whole file changed
+                    Set<String> keys = null;
+                    String coalesced = uri.getQueryParameter(PARAM_KEYS);
+                    if (coalesced != null) {
+                        try {
+                            keys = unmarshallSet(coalesced);
+                        } catch (JSONException e) {
+                            // Ignore
+                        }
+                    } else if (segments.size() > 3) {
+                        keys = Collections.singleton(decodePath(segments.get(3)));
+                    }
+
+                    if (keys == null) {
+                        notifyListeners(null);
+                    } else {
+                        for (String key : keys) {
+                            notifyListeners(key);
+                        }
                     }
                 }
             }
         };
         private boolean mObserving = false;
 
+        private void notifyListeners(String key) {
+            for (OnSharedPreferenceChangeListener cb : mListeners) {
+                cb.onSharedPreferenceChanged(MultiProcessSharedPreferences.this, key);
+            }
+        }
+
         private final Context mContext;
         private final List<OnSharedPreferenceChangeListener> mListeners = new ArrayList<>();
 
@@ -489,9 +1077,48 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
 
         @Override
         public Map<String, ?> getAll() {
+            return queryAll(resolveUri(null, mPreferencesFileName));
+        }
+
+        /**
+         * Returns all the preferences which key starts with the passed prefix. The query
+         * is resolved by the provider, so only the matching entries are transferred.
+         */
+        public Map<String, ?> getAll(String prefix) {
+            if (TextUtils.isEmpty(prefix)) {
+                return getAll();
+            }
+            return queryAll(resolvePrefixUri(prefix, mPreferencesFileName));
+        }
+
+        /**
+         * Returns an immutable point-in-time view of the whole preferences file, fetched
+         * in a single round trip to the provider.
+         */
+        public Snapshot snapshot() {
+            return readSnapshot((String[]) null);
+        }
+
+        /**
+         * Returns an immutable point-in-time view of the passed keys, fetched in a single
+         * round trip to the provider. Writes from other processes can't be seen partially:
+         * the changes of an editor are applied by the provider all at once.
+         */
+        public Snapshot readSnapshot(String... keys) {
+            Bundle extras = new Bundle();
+            extras.putStringArray(FIELD_KEY, keys);
+            Bundle result = mContext.getContentResolver().call(
+                    CONTENT_URI, METHOD_SNAPSHOT, mPreferencesFileName, extras);
+            if (result == null) {
+                return new Snapshot(new HashMap<String, Object>(), -1);
+            }
+            return new Snapshot(fromBundle(result.getBundle(EXTRA_VALUES)),
+                    result.getLong(EXTRA_VERSION));
+        }
+
+        private Map<String, ?> queryAll(Uri uri) {
             Map<String, Object> values = new HashMap<>();
-            Cursor c = mContext.getContentResolver().query(
-                    resolveUri(null, mPreferencesFileName), PROJECTION, null, null, null);
+            Cursor c = mContext.getContentResolver().query(uri, PROJECTION, null, null, null);
             if (c != null) {
                 try {
                     while (c.moveToNext()) {
@@ -700,7 +1327,7 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
         }
 
         @Override
-        public Editor edit() {
+        public MultiProcessEditor edit() {
             return new MultiProcessEditor(mContext, mPreferencesFileName);
         }
 
@@ -734,4 +1361,13 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
         }
         return builder.build();
     }
+
+    public static Uri resolvePrefixUri(String prefix, String prefFileName) {
+        return CONTENT_URI.buildUpon()
+                .appendPath(PREFERENCES_ENTITY)
+                .appendPath(encodePath(prefFileName))
+                .appendPath(PREFIX_ENTITY)
+                .appendPath(encodePath(prefix))
+                .build();
+    }
 }
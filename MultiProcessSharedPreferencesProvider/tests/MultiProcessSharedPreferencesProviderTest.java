@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.preferences;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.ProviderInfo;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+
+import com.ruesga.preferences.MultiProcessSharedPreferencesProvider.Durability;
+import com.ruesga.preferences.MultiProcessSharedPreferencesProvider.MultiProcessSharedPreferences;
+import com.ruesga.preferences.MultiProcessSharedPreferencesProvider.Snapshot;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+@RunWith(AndroidJUnit4.class)
+public class MultiProcessSharedPreferencesProviderTest {
+
+    private static final String AUTHORITY = "com.android.providers";
+
+    private static final int COMMITS = 500;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        // Route the calls of the preferences to a provider instance owned by the test
+        final MockContentResolver resolver = new MockContentResolver();
+        mContext = new ContextWrapper(InstrumentationRegistry.getTargetContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+        };
+        // The provider checks the authority of the calls (API 29+), so it needs its own
+        ProviderInfo info = new ProviderInfo();
+        info.authority = AUTHORITY;
+        info.exported = false;
+        MultiProcessSharedPreferencesProvider provider =
+                new MultiProcessSharedPreferencesProvider();
+        provider.attachInfo(mContext, info);
+        resolver.addProvider(AUTHORITY, provider);
+    }
+
+    private MultiProcessSharedPreferences getPreferences(final String name) {
+        // The preferences observe the provider with a handler, so they need a looper
+        final AtomicReference<MultiProcessSharedPreferences> prefs = new AtomicReference<>();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                prefs.set(MultiProcessSharedPreferencesProvider.getSharedPreferences(
+                        mContext, name));
+            }
+        });
+        return prefs.get();
+    }
+
+    @Test
+    public void testMultiKeyCommitIsAppliedWithOneVersion() {
+        MultiProcessSharedPreferences prefs = getPreferences("test_commit_version");
+        prefs.edit().putInt("a", 0).putInt("c", 0).commit();
+
+        long version = prefs.snapshot().getVersion();
+        prefs.edit().clear().putInt("a", 1).putString("b", "1").remove("c").commit();
+
+        Snapshot snapshot = prefs.snapshot();
+        assertEquals(version + 1, snapshot.getVersion());
+        assertEquals(1, snapshot.getInt("a", -1));
+        assertEquals("1", snapshot.getString("b", null));
+        assertFalse(snapshot.contains("c"));
+    }
+
+    @Test
+    public void testMultiKeyCommitIsSeenAtOnce() throws Exception {
+        final MultiProcessSharedPreferences prefs = getPreferences("test_commit_atomic");
+        prefs.edit().putInt("a", 0).putInt("b", 0).putInt("c", 0).commit();
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= COMMITS; i++) {
+                    prefs.edit()
+                            .setDurability(Durability.MEMORY)
+                            .putInt("a", i)
+                            .putInt("b", i)
+                            .putInt("c", i)
+                            .commit();
+                }
+            }
+        });
+        writer.start();
+
+        // Every snapshot must see all the keys of a commit or none of them
+        String torn = null;
+        while (writer.isAlive() && torn == null) {
+            Snapshot snapshot = prefs.readSnapshot("a", "b", "c");
+            int a = snapshot.getInt("a", -1);
+            int b = snapshot.getInt("b", -1);
+            int c = snapshot.getInt("c", -1);
+            if (a != b || b != c) {
+                torn = "a=" + a + ", b=" + b + ", c=" + c
+                        + " at version " + snapshot.getVersion();
+            }
+        }
+        writer.join();
+
+        assertNull(torn);
+        assertEquals(COMMITS, prefs.readSnapshot("a").getInt("a", -1));
+    }
+}
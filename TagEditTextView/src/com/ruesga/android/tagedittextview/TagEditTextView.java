@@ -33,12 +33,13 @@ import android.os.Message;
 import android.support.annotation.NonNull;
 import android.text.Editable;
 import android.text.InputType;
-import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.TextWatcher;
 import android.text.method.KeyListener;
 import android.text.style.ImageSpan;
+import android.text.style.ReplacementSpan;
 import android.util.AttributeSet;
+import android.util.LruCache;
 import android.util.TypedValue;
 import android.view.ActionMode;
 import android.view.Menu;
@@ -51,8 +52,15 @@ import android.view.inputmethod.EditorInfo;
 import android.widget.EditText;
 import android.widget.LinearLayout;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -120,6 +128,33 @@ public class TagEditTextView extends LinearLayout {
         void onTagRemove(Tag tag);
     }
 
+    /**
+     * A listener that receives in one call all the tags created and removed within a
+     * turn of the main looper.
+     */
+    public interface OnTagsChangedListener {
+        void onTagsChanged(Tag[] added, Tag[] removed);
+    }
+
+    // Delivers the batched events to a per-tag listener
+    private static class TagEventListenerAdapter implements OnTagsChangedListener {
+        private final OnTagEventListener mListener;
+
+        public TagEventListenerAdapter(OnTagEventListener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void onTagsChanged(Tag[] added, Tag[] removed) {
+            for (Tag tag : removed) {
+                mListener.onTagRemove(tag);
+            }
+            for (Tag tag : added) {
+                mListener.onTagCreate(tag);
+            }
+        }
+    }
+
     public interface OnComputedTagEndedListener {
         void onComputedTagEnded();
     }
@@ -151,6 +186,46 @@ public class TagEditTextView extends LinearLayout {
         USER
     }
 
+    /**
+     * How the chips are rendered. {@link #BITMAP} rasterizes every chip into its own
+     * bitmap. {@link #SPAN} draws the chips straight into the EditText canvas, so there
+     * aren't per-chip bitmaps.
+     */
+    public enum CHIP_MODE {
+        BITMAP,
+        SPAN
+    }
+
+    // A chip drawn straight into the canvas of the EditText with the shared chip paints.
+    // It's aligned to the bottom of the line, like the ImageSpan of the bitmap chips
+    private class TagSpan extends ReplacementSpan {
+        private final Tag mTag;
+        private final String mText;
+
+        public TagSpan(Tag tag, String text) {
+            mTag = tag;
+            mText = text;
+        }
+
+        @Override
+        public int getSize(@NonNull Paint paint, CharSequence text, int start, int end,
+                Paint.FontMetricsInt fm) {
+            if (fm != null) {
+                fm.ascent = -mTag.h;
+                fm.descent = 0;
+                fm.top = fm.ascent;
+                fm.bottom = 0;
+            }
+            return mTag.w;
+        }
+
+        @Override
+        public void draw(@NonNull Canvas canvas, CharSequence text, int start, int end,
+                float x, int top, int y, int bottom, @NonNull Paint paint) {
+            drawTagChip(canvas, mTag, mText, x, bottom - mTag.h);
+        }
+    }
+
     private final TextWatcher mEditListener = new TextWatcher() {
         @Override
         public void beforeTextChanged(CharSequence s, int start, int count, int after) {
@@ -164,11 +239,7 @@ public class TagEditTextView extends LinearLayout {
             if (count == 0 && start == (mTagList.size() - 1)) {
                 mLockEdit = true;
                 try {
-                    Editable e = mTagEdit.getEditableText();
-                    ImageSpan[] spans = e.getSpans(start, start + 1, ImageSpan.class);
-                    for (ImageSpan span : spans) {
-                        e.removeSpan(span);
-                    }
+                    removeTagSpan(mTagEdit.getEditableText(), start);
                     Tag tag = mTagList.get(start);
                     mTagList.remove(start);
 
@@ -193,15 +264,16 @@ public class TagEditTextView extends LinearLayout {
             // Check if we need to create a new chip
             mLockEdit = true;
             try {
-                String text = s.toString();
-                int textLength = text.length();
+                // Only the last char is checked, straight from the editable
+                int textLength = s.length();
                 boolean isCreateChip = false;
                 boolean nextIsTag = false;
                 if (textLength > 0) {
-                    String lastChar = text.substring(textLength - 1);
-                    if (lastChar.charAt(0) != VALID_TAGS.charAt(1) || mSupportsUserTags) {
-                        isCreateChip = NON_UNICODE_CHAR_PATTERN.matcher(lastChar).matches();
-                        nextIsTag = VALID_TAGS.contains(lastChar);
+                    int lastChar = Character.codePointBefore(s, textLength);
+                    if (lastChar != VALID_TAGS.charAt(1) || mSupportsUserTags) {
+                        int charClass = getCharClass(lastChar);
+                        isCreateChip = (charClass & CHAR_CLASS_TAG) == 0;
+                        nextIsTag = (charClass & CHAR_CLASS_TAG_PREFIX) != 0;
                     }
                 }
                 if (isCreateChip || nextIsTag) {
@@ -209,8 +281,7 @@ public class TagEditTextView extends LinearLayout {
                     notifyComputeTagEnded();
                 } else if (mTriggerTagCreationThreshold > 0) {
                     int start = mTagList.size();
-                    String tagText = s.subSequence(start, textLength).toString().trim();
-                    if (tagText.length() >= CREATE_CHIP_LENGTH_THRESHOLD) {
+                    if (trimmedLength(s, start, textLength) >= CREATE_CHIP_LENGTH_THRESHOLD) {
                         mHandler.removeMessages(MESSAGE_CREATE_CHIP);
                         mHandler.sendMessageDelayed(
                                 mHandler.obtainMessage(MESSAGE_CREATE_CHIP),
@@ -231,6 +302,9 @@ public class TagEditTextView extends LinearLayout {
                     Editable s = mTagEdit.getEditableText();
                     s.insert(s.length(), CHIP_REPLACEMENT_CHAR);
                     break;
+                case MESSAGE_DISPATCH_TAG_EVENTS:
+                    dispatchTagEvents();
+                    break;
             }
             return false;
         }
@@ -240,14 +314,29 @@ public class TagEditTextView extends LinearLayout {
             "(?<=^|(?<=[^a-zA-Z0-9-_\\\\.]))#([\\p{L}]+[\\p{L}0-9_]+)");
     private static final Pattern USER_TAG_PATTERN = Pattern.compile(
             "(?<=^|(?<=[^a-zA-Z0-9-_\\\\.]))@([\\p{L}]+[\\p{L}0-9_]+)");
-    private static final Pattern NON_UNICODE_CHAR_PATTERN = Pattern.compile("[^\\p{L}0-9_#@]");
 
     private static final String VALID_TAGS = "#@";
 
-    private static final String CHIP_SEPARATOR_CHAR = " ";
+    // The classes of the Latin-1 chars, so the keystroke path doesn't need to use regexps.
+    // The chars of a tag are the ones matched by [\p{L}0-9_#@]
+    private static final int CHAR_CLASS_TAG = 1;
+    private static final int CHAR_CLASS_TAG_PREFIX = 2;
+    private static final byte[] CHAR_CLASSES = new byte[256];
+    static {
+        for (int c = 0; c < CHAR_CLASSES.length; c++) {
+            if (Character.isLetter(c) || (c >= '0' && c <= '9') || c == '_') {
+                CHAR_CLASSES[c] = CHAR_CLASS_TAG;
+            }
+        }
+        for (int i = 0; i < VALID_TAGS.length(); i++) {
+            CHAR_CLASSES[VALID_TAGS.charAt(i)] = CHAR_CLASS_TAG | CHAR_CLASS_TAG_PREFIX;
+        }
+    }
+
     private static final String CHIP_REPLACEMENT_CHAR = ".";
 
     private static final int MESSAGE_CREATE_CHIP = 0;
+    private static final int MESSAGE_DISPATCH_TAG_EVENTS = 1;
 
     private static final long CREATE_CHIP_LENGTH_THRESHOLD = 3L;
     private static final long CREATE_CHIP_DEFAULT_DELAYED_TIMEOUT = 1500L;
@@ -255,9 +344,50 @@ public class TagEditTextView extends LinearLayout {
     private static float ONE_PIXEL = 0f;
     private static final Typeface CHIP_TYPEFACE = Typeface.create("Helvetica", Typeface.BOLD);
     private static final String CHIP_REMOVE_TEXT = " | x ";
+    // The chips of a few views. Their area grows with the square of the density.
+    // See setChipCacheSize
+    private static final float CHIP_CACHE_DENSITY =
+            Resources.getSystem().getDisplayMetrics().density;
+    private static final int CHIP_CACHE_SIZE =
+            (int) (256 * 1024 * CHIP_CACHE_DENSITY * CHIP_CACHE_DENSITY);
     private Paint mChipBgPaint;
     private Paint mChipFgPaint;
+    private final RectF mChipRect = new RectF();
     private int mChipRemoveAreaWidth;
+    private CHIP_MODE mChipMode = CHIP_MODE.BITMAP;
+
+    // A chip evicted from the cache, found while any span still draws it
+    private static class ChipReference extends WeakReference<Bitmap> {
+        private final String mKey;
+
+        public ChipReference(String key, Bitmap chip) {
+            super(chip, sEvictedChipsQueue);
+            mKey = key;
+        }
+    }
+
+    // The chips evicted from the cache. The bitmaps are never recycled when they are
+    // evicted because the spans of any view could still be drawing them, so while they
+    // are drawn they are reused instead of rasterized again. Only used from the ui thread
+    private static final Map<String, ChipReference> sEvictedChips = new HashMap<>();
+    private static final ReferenceQueue<Bitmap> sEvictedChipsQueue = new ReferenceQueue<>();
+
+    // The chip bitmaps shared by all the views
+    private static final LruCache<String, Bitmap> sChipCache =
+            new LruCache<String, Bitmap>(CHIP_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getByteCount();
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                Bitmap newValue) {
+            if (evicted) {
+                sEvictedChips.put(key, new ChipReference(key, oldValue));
+            }
+        }
+    };
 
     private TagEditText mTagEdit;
     private List<Tag> mTagList = new ArrayList<>();
@@ -270,7 +400,9 @@ public class TagEditTextView extends LinearLayout {
     private boolean mSupportsUserTags = true;
 
     private Handler mHandler;
-    private final List<OnTagEventListener> mTagEventCallBacks = new ArrayList<>();
+    private final List<OnTagsChangedListener> mTagEventCallBacks = new ArrayList<>();
+    private final List<Tag> mPendingAddedTags = new ArrayList<>();
+    private final List<Tag> mPendingRemovedTags = new ArrayList<>();
     private final List<OnComputedTagEndedListener> mComputeTagCallbacks = new ArrayList<>();
 
     private boolean mLockEdit;
@@ -385,24 +517,16 @@ public class TagEditTextView extends LinearLayout {
         mHandler.sendMessage(mHandler.obtainMessage(MESSAGE_CREATE_CHIP));
     }
 
-    private void onTagRemoveClick(final Tag tag) {
+    private void onTagRemoveClick(Tag tag) {
         Editable s = mTagEdit.getEditableText();
         int position = mTagList.indexOf(tag);
         mLockEdit = true;
         mTagList.remove(position);
-        ImageSpan[] spans = s.getSpans(position, position + 1, ImageSpan.class);
-        for (ImageSpan span : spans) {
-            s.removeSpan(span);
-        }
+        removeTagSpan(s, position);
         s.delete(position, position + 1);
         mLockEdit = false;
 
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                notifyTagRemoved(tag);
-            }
-        });
+        notifyTagRemoved(tag);
     }
 
     public boolean isSupportsUserTags() {
@@ -453,6 +577,26 @@ public class TagEditTextView extends LinearLayout {
         this.mDefaultTagMode = defaultTagMode;
     }
 
+    public CHIP_MODE getChipMode() {
+        return mChipMode;
+    }
+
+    public void setChipMode(CHIP_MODE chipMode) {
+        if (mChipMode != chipMode) {
+            mChipMode = chipMode;
+            refresh();
+        }
+    }
+
+    /**
+     * Sets the max size (in bytes) of the chip bitmaps cached for all the views. By
+     * default it's 256KB at mdpi, scaled with the screen density. Chips evicted from the
+     * cache are reused anyway while any view still draws them.
+     */
+    public static void setChipCacheSize(int maxSize) {
+        sChipCache.resize(maxSize);
+    }
+
     public long getTriggerTagCreationThreshold() {
         return mTriggerTagCreationThreshold;
     }
@@ -462,88 +606,267 @@ public class TagEditTextView extends LinearLayout {
     }
 
     public void addTagEventListener(OnTagEventListener callback) {
+        if (indexOfTagEventListener(callback) == -1) {
+            mTagEventCallBacks.add(new TagEventListenerAdapter(callback));
+        }
+    }
+
+    public void removeTagEventListener(OnTagEventListener callback) {
+        int index = indexOfTagEventListener(callback);
+        if (index != -1) {
+            mTagEventCallBacks.remove(index);
+        }
+    }
+
+    private int indexOfTagEventListener(OnTagEventListener callback) {
+        int count = mTagEventCallBacks.size();
+        for (int i = 0; i < count; i++) {
+            OnTagsChangedListener cb = mTagEventCallBacks.get(i);
+            if (cb instanceof TagEventListenerAdapter
+                    && ((TagEventListenerAdapter) cb).mListener == callback) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void addTagsChangedListener(OnTagsChangedListener callback) {
         if (!mTagEventCallBacks.contains(callback)) {
             mTagEventCallBacks.add(callback);
         }
     }
 
-    public void removeTagEventListener(OnTagEventListener callback) {
+    public void removeTagsChangedListener(OnTagsChangedListener callback) {
         if (mTagEventCallBacks.contains(callback)) {
             mTagEventCallBacks.remove(callback);
         }
     }
 
     private void refresh() {
-        setTags(getTags());
+        setTags(getTags(), true);
     }
 
     public Tag[] getTags() {
-        Tag[] tags = new Tag[mTagList.size()];
-        int count = mTagList.size();
-        for (int i = 0; i < count; i++) {
-            tags[i] = mTagList.get(i).copy();
-        }
-        return tags;
+        return copyTags(mTagList);
     }
 
     public void setTags(Tag[] tags) {
-        // Delete any existent data
-        mTagEdit.getEditableText().clearSpans();
-        int count = mTagList.size() - 1;
-        for (int i = count; i >= 0; i--) {
-            onTagRemoveClick(mTagList.get(i));
-        }
-        mTagEdit.setText("");
+        setTags(tags, false);
+    }
 
-        // Filter invalid tags
+    // Applies the differences between the current tags and the new ones, so only the
+    // chips of the inserted, removed and moved tags are touched. Tags are matched by
+    // their text. If rebuild is true, the chips of the kept tags are recreated too
+    private void setTags(Tag[] tags, boolean rebuild) {
+        mHandler.removeMessages(MESSAGE_CREATE_CHIP);
+
+        // Match the new tags with the current ones
+        Map<String, List<Tag>> current = new HashMap<>();
+        int count = mTagList.size();
+        for (int i = 0; i < count; i++) {
+            Tag tag = mTagList.get(i);
+            String key = tag.mTag.toString();
+            List<Tag> matches = current.get(key);
+            if (matches == null) {
+                matches = new ArrayList<>();
+                current.put(key, matches);
+            }
+            matches.add(tag);
+        }
+        List<Tag> target = new ArrayList<>(tags.length);
+        List<Tag> added = new ArrayList<>();
+        Set<Tag> changed = new HashSet<>();
         for (Tag tag : tags) {
-            Matcher hashTagMatcher = HASH_TAG_PATTERN.matcher(tag.mTag);
-            Matcher userTagMatcher = USER_TAG_PATTERN.matcher(tag.mTag);
-            if (hashTagMatcher.matches() || (mSupportsUserTags && userTagMatcher.matches())) {
-                mTagList.add(tag);
+            // Filter invalid tags
+            if (!isValidTag(tag)) {
+                continue;
+            }
+            List<Tag> matches = current.get(tag.mTag.toString());
+            if (matches != null && !matches.isEmpty()) {
+                Tag old = matches.remove(0);
+                if (tag.mColor != 0 && tag.mColor != old.mColor) {
+                    old.mColor = tag.mColor;
+                    changed.add(old);
+                }
+                target.add(old);
+            } else {
+                target.add(tag);
+                added.add(tag);
             }
         }
 
-        // Build the spans
-        SpannableStringBuilder builder;
-        if (tags.length > 0) {
-            final String text = String.format("%" + tags.length + "s", CHIP_SEPARATOR_CHAR)
-                    .replaceAll(CHIP_SEPARATOR_CHAR, CHIP_REPLACEMENT_CHAR);
-            builder = new SpannableStringBuilder(text);
-        } else {
-            builder = new SpannableStringBuilder("");
+        // The kept tags that are already in order stay in place. The rest of them are moved
+        Map<Tag, Integer> positions = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            positions.put(mTagList.get(i), i);
+        }
+        List<Tag> kept = new ArrayList<>();
+        List<Integer> keptPositions = new ArrayList<>();
+        for (Tag tag : target) {
+            Integer position = positions.get(tag);
+            if (position != null) {
+                kept.add(tag);
+                keptPositions.add(position);
+            }
+        }
+        Set<Tag> moving = new HashSet<>(kept);
+        Set<Tag> stable = new HashSet<>();
+        boolean[] ordered = longestIncreasingSubsequence(keptPositions);
+        for (int i = 0; i < ordered.length; i++) {
+            if (ordered[i]) {
+                stable.add(kept.get(i));
+                moving.remove(kept.get(i));
+            }
         }
 
-        int pos = 0;
-        for (final Tag tag : mTagList) {
-            Bitmap b = createTagChip(tag);
-            tag.w = b.getWidth();
-            tag.h = b.getHeight();
-            ImageSpan span = new ImageSpan(getContext(), b, ImageSpan.ALIGN_BOTTOM);
-            builder.setSpan(span, pos, pos + 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            pos++;
+        Editable s = mTagEdit.getEditableText();
+        List<Tag> removed = new ArrayList<>();
+        Map<Tag, ReplacementSpan> moved = new HashMap<>();
+        mLockEdit = true;
+        try {
+            // Delete the text not converted to chips yet, and the removed and moved chips
+            s.delete(count, s.length());
+            for (int i = count - 1; i >= 0; i--) {
+                Tag tag = mTagList.get(i);
+                if (!stable.contains(tag)) {
+                    ReplacementSpan span = removeTagSpan(s, i);
+                    if (moving.contains(tag)) {
+                        moved.put(tag, span);
+                    } else {
+                        removed.add(tag);
+                    }
+                    // Remove the tag first, so the selection is never moved past the
+                    // end of the text (see TagEditText#onSelectionChanged)
+                    mTagList.remove(i);
+                    s.delete(i, i + 1);
+                }
+            }
+
+            // Insert the new and moved chips, and rebuild the changed ones
+            count = target.size();
+            for (int i = 0; i < count; i++) {
+                Tag tag = target.get(i);
+                if (i < mTagList.size() && mTagList.get(i) == tag) {
+                    if (rebuild || changed.contains(tag)) {
+                        removeTagSpan(s, i);
+                        s.setSpan(createTagSpan(tag), i, i + 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    }
+                    continue;
+                }
+
+                ReplacementSpan span = moved.get(tag);
+                if (span == null || rebuild || changed.contains(tag)) {
+                    span = createTagSpan(tag);
+                }
+                s.insert(i, CHIP_REPLACEMENT_CHAR);
+                s.setSpan(span, i, i + 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                mTagList.add(i, tag);
+            }
+        } finally {
+            mLockEdit = false;
+        }
+        mTagEdit.setSelection(s.length());
+        Collections.reverse(removed);
 
+        // Only notify the tags that really changed
+        for (Tag tag : removed) {
+            notifyTagRemoved(tag);
+        }
+        for (Tag tag : added) {
             notifyTagCreated(tag);
         }
-        mTagEdit.setText(builder);
-        mTagEdit.setSelection(mTagEdit.getText().length());
+    }
+
+    private static int getCharClass(int codePoint) {
+        if (codePoint < CHAR_CLASSES.length) {
+            return CHAR_CLASSES[codePoint];
+        }
+        return Character.isLetter(codePoint) ? CHAR_CLASS_TAG : 0;
+    }
+
+    // The length of the text between start and end without the leading and trailing
+    // whitespaces (like String#trim)
+    private static int trimmedLength(CharSequence s, int start, int end) {
+        while (start < end && s.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && s.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end - start;
+    }
+
+    private boolean isValidTag(Tag tag) {
+        if (tag.mTag == null) {
+            return false;
+        }
+        Matcher hashTagMatcher = HASH_TAG_PATTERN.matcher(tag.mTag);
+        Matcher userTagMatcher = USER_TAG_PATTERN.matcher(tag.mTag);
+        return hashTagMatcher.matches() || (mSupportsUserTags && userTagMatcher.matches());
+    }
+
+    // Removes the chip span of the tag at the position, and returns it
+    private ReplacementSpan removeTagSpan(Editable s, int position) {
+        ReplacementSpan[] spans = s.getSpans(position, position + 1, ReplacementSpan.class);
+        for (ReplacementSpan span : spans) {
+            s.removeSpan(span);
+        }
+        return spans.length > 0 ? spans[0] : null;
+    }
+
+    // Returns which elements of the sequence are part of its longest increasing subsequence
+    private static boolean[] longestIncreasingSubsequence(List<Integer> sequence) {
+        int count = sequence.size();
+        int[] tails = new int[count];
+        int[] previous = new int[count];
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            int value = sequence.get(i);
+            int lo = 0, hi = length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (sequence.get(tails[mid]) < value) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            previous[i] = lo > 0 ? tails[lo - 1] : -1;
+            tails[lo] = i;
+            if (lo == length) {
+                length++;
+            }
+        }
+
+        boolean[] result = new boolean[count];
+        for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i]) {
+            result[i] = true;
+        }
+        return result;
     }
 
     private void createChip(Editable s, boolean nextIsTag) {
         int start = mTagList.size();
         int end = s.length() + (nextIsTag ? -1 : 0);
-        String tagText = s.subSequence(start, end).toString().trim();
-        tagText = NON_UNICODE_CHAR_PATTERN.matcher(tagText).replaceAll("");
-        if (tagText.isEmpty() || tagText.length() <= 1) {
+        // Keep only the chars valid in a tag
+        StringBuilder tagText = new StringBuilder(end - start + 1);
+        for (int i = start; i < end; ) {
+            int c = Character.codePointAt(s, i);
+            if ((getCharClass(c) & CHAR_CLASS_TAG) != 0) {
+                tagText.appendCodePoint(c);
+            }
+            i += Character.charCount(c);
+        }
+        if (tagText.length() <= 1) {
             // User is still writing
             return;
         }
-        String charText = tagText.substring(0, 1);
-        if (!VALID_TAGS.contains(charText) ||
-                (charText.charAt(0) == VALID_TAGS.charAt(1) && !mSupportsUserTags)) {
+        char prefix = tagText.charAt(0);
+        if ((getCharClass(prefix) & CHAR_CLASS_TAG_PREFIX) == 0 ||
+                (prefix == VALID_TAGS.charAt(1) && !mSupportsUserTags)) {
             char tag = mDefaultTagMode == TAG_MODE.HASH
                     ? VALID_TAGS.charAt(0) : VALID_TAGS.charAt(1);
-            tagText = tag + tagText;
+            tagText.insert(0, tag);
         }
 
         // Replace the new tag
@@ -551,18 +874,16 @@ public class TagEditTextView extends LinearLayout {
 
         // Create the tag and its spannable
         final Tag tag = new Tag();
-        tag.mTag = NON_UNICODE_CHAR_PATTERN.matcher(tagText).replaceAll("");
-        Bitmap b = createTagChip(tag);
-        ImageSpan span = new ImageSpan(getContext(), b);
+        tag.mTag = tagText.toString();
+        ReplacementSpan span = createTagSpan(tag);
         s.setSpan(span, start, start + 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-        tag.w = b.getWidth();
-        tag.h = b.getHeight();
         mTagList.add(tag);
 
         notifyTagCreated(tag);
     }
 
-    private Bitmap createTagChip(Tag tag) {
+    // Creates the span of the chip of the tag, and measures the chip (tag.w and tag.h)
+    private ReplacementSpan createTagSpan(Tag tag) {
         // Create the tag string (prepend/append spaces to better ux). Create a clickable
         // area for deleting the tag in non-readonly mode
         String tagText = String.format(" %s " + (mReadOnly ? "" : CHIP_REMOVE_TEXT), tag.mTag);
@@ -571,24 +892,72 @@ public class TagEditTextView extends LinearLayout {
         if (tag.mColor == 0) {
             tag.mColor = newRandomColor();
         }
-        mChipBgPaint.setColor((isEnabled()) ? tag.mColor : Color.LTGRAY);
 
         // Measure the chip rect
         int padding = (int) ONE_PIXEL * 2;
         int w = (int) (mChipFgPaint.measureText(tagText) + 0.5f) + (padding * 2);
         float baseline = (int) (-mChipFgPaint.ascent() + 0.5f + (padding / 2));
         int h = (int) (baseline + mChipFgPaint.descent() + 0.5f) + (padding * 2);
+        tag.w = w + padding;
+        tag.h = h + padding;
 
-        // Create the bitmap
-        Bitmap bitmap = Bitmap.createBitmap(w + padding, h + padding, Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(bitmap);
+        if (mChipMode == CHIP_MODE.SPAN) {
+            return new TagSpan(tag, tagText);
+        }
+        return new ImageSpan(getContext(), createTagChip(tag, tagText), ImageSpan.ALIGN_BOTTOM);
+    }
+
+    private Bitmap createTagChip(Tag tag, String tagText) {
+        // Reuse the chip if it was already rasterized by this or other view
+        boolean enabled = isEnabled();
+        String key = tagText + '|' + tag.mColor + '|' + enabled + '|' + mReadOnly
+                + '|' + mChipFgPaint.getTextSize();
+        Bitmap bitmap = getCachedChip(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
 
-        // Draw the bitmap
-        canvas.drawRoundRect(new RectF(0, (padding / 2), w, h), 6, 6, mChipBgPaint);
-        canvas.drawText(tagText, (padding / 2), baseline, mChipFgPaint);
+        bitmap = Bitmap.createBitmap(tag.w, tag.h, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        drawTagChip(canvas, tag, tagText, 0, 0);
+        sChipCache.put(key, bitmap);
         return bitmap;
     }
 
+    private static Bitmap getCachedChip(String key) {
+        Bitmap chip = sChipCache.get(key);
+        if (chip != null) {
+            return chip;
+        }
+
+        // Forget the evicted chips that aren't drawn anymore
+        ChipReference reference;
+        while ((reference = (ChipReference) sEvictedChipsQueue.poll()) != null) {
+            if (sEvictedChips.get(reference.mKey) == reference) {
+                sEvictedChips.remove(reference.mKey);
+            }
+        }
+        reference = sEvictedChips.remove(key);
+        chip = reference != null ? reference.get() : null;
+        if (chip != null) {
+            // Still drawn by a span. Cache it again
+            sChipCache.put(key, chip);
+        }
+        return chip;
+    }
+
+    private void drawTagChip(Canvas canvas, Tag tag, String tagText, float left, float top) {
+        int padding = (int) ONE_PIXEL * 2;
+        int w = tag.w - padding;
+        int h = tag.h - padding;
+        float baseline = (int) (-mChipFgPaint.ascent() + 0.5f + (padding / 2));
+
+        mChipBgPaint.setColor((isEnabled()) ? tag.mColor : Color.LTGRAY);
+        mChipRect.set(left, top + (padding / 2), left + w, top + h);
+        canvas.drawRoundRect(mChipRect, 6, 6, mChipBgPaint);
+        canvas.drawText(tagText, left + (padding / 2), top + baseline, mChipFgPaint);
+    }
+
     public static int newRandomColor() {
         int random = (int) (Math.floor(Math.random() * 0xff0f0f0f) + 0xff000000);
         int color = Color.argb(0xff, Color.red(random), Color.green(random), Color.blue(random));
@@ -600,29 +969,47 @@ public class TagEditTextView extends LinearLayout {
         return color;
     }
 
-    private void notifyTagCreated(final Tag tag) {
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                Tag copy = tag.copy();
-                for (OnTagEventListener cb : mTagEventCallBacks) {
-                    cb.onTagCreate(copy);
-                }
-            }
-        });
+    // Tag events are collected and delivered all together in the next turn of the looper
+    private void notifyTagCreated(Tag tag) {
+        mPendingAddedTags.add(tag);
+        scheduleTagEvents();
+    }
 
+    private void notifyTagRemoved(Tag tag) {
+        // A tag created and removed in the same turn is never notified
+        if (!mPendingAddedTags.remove(tag)) {
+            mPendingRemovedTags.add(tag);
+        }
+        scheduleTagEvents();
     }
 
-    private void notifyTagRemoved(final Tag tag) {
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                Tag copy = tag.copy();
-                for (OnTagEventListener cb : mTagEventCallBacks) {
-                    cb.onTagRemove(copy);
-                }
-            }
-        });
+    private void scheduleTagEvents() {
+        if (!mHandler.hasMessages(MESSAGE_DISPATCH_TAG_EVENTS)) {
+            mHandler.sendEmptyMessage(MESSAGE_DISPATCH_TAG_EVENTS);
+        }
+    }
+
+    private void dispatchTagEvents() {
+        Tag[] added = copyTags(mPendingAddedTags);
+        Tag[] removed = copyTags(mPendingRemovedTags);
+        mPendingAddedTags.clear();
+        mPendingRemovedTags.clear();
+        if (added.length == 0 && removed.length == 0) {
+            return;
+        }
+
+        for (OnTagsChangedListener cb : mTagEventCallBacks) {
+            cb.onTagsChanged(added, removed);
+        }
+    }
+
+    private static Tag[] copyTags(List<Tag> tags) {
+        int count = tags.size();
+        Tag[] copies = new Tag[count];
+        for (int i = 0; i < count; i++) {
+            copies[i] = tags.get(i).copy();
+        }
+        return copies;
     }
 
     private void notifyComputeTagEnded() {
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.android.tagedittextview;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.ruesga.android.tagedittextview.TagEditTextView.Tag;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+public class TagEditTextViewTest {
+
+    private TagEditTextView mView;
+
+    @Before
+    public void setUp() {
+        // Views must be created and used in the main thread
+        final AtomicReference<TagEditTextView> view = new AtomicReference<>();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                view.set(new TagEditTextView(InstrumentationRegistry.getTargetContext()));
+            }
+        });
+        mView = view.get();
+    }
+
+    private static Tag[] tags(String... texts) {
+        Tag[] tags = new Tag[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            tags[i] = new Tag();
+            tags[i].mTag = texts[i];
+        }
+        return tags;
+    }
+
+    private static void assertTags(Tag[] actual, String... expected) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i].mTag.toString());
+        }
+    }
+
+    private Tag[] setTags(final String... texts) {
+        final AtomicReference<Tag[]> tags = new AtomicReference<>();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mView.setTags(tags(texts));
+                tags.set(mView.getTags());
+            }
+        });
+        return tags.get();
+    }
+
+    @Test
+    public void testSetTags() {
+        assertTags(setTags("#one", "#two", "#three"), "#one", "#two", "#three");
+    }
+
+    @Test
+    public void testSetTagsRemovesTags() {
+        // The selection is at the end of the text while the chips are removed
+        setTags("#one", "#two", "#three");
+        assertTags(setTags("#one", "#three"), "#one", "#three");
+        assertTags(setTags("#three"), "#three");
+        assertTags(setTags());
+    }
+
+    @Test
+    public void testSetTagsMovesTags() {
+        setTags("#one", "#two", "#three");
+        assertTags(setTags("#three", "#four", "#one"), "#three", "#four", "#one");
+    }
+}